@@ -0,0 +1,84 @@
+package com.leonardofischer.jss;
+
+/**
+ * The stand-in service started and stoped by the benchmarks. It does nothing
+ * besides waiting to be stoped, so only the cost of the library is measured.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class BenchService extends Service {
+
+    static final int PORT = 9870;
+
+    private boolean running = true;
+
+    /**
+     * Set when a command run by the benchmark failed.
+     */
+    volatile String failure = null;
+
+    public BenchService() {
+        getServiceController().setPort(PORT);
+    }
+
+    public synchronized void start(String[] args) {
+        while (running) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    public synchronized void stop(String[] args) {
+        running = false;
+        notifyAll();
+    }
+
+    public String status(String[] args) {
+        return "STATUS: the benchmark service is running";
+    }
+
+    /**
+     * Runs the given command (such as 'start') as if it was given in the
+     * command line, and throws an exception if it didn't work.
+     */
+    void control(String command) {
+        failure = null;
+        parseArgs(new String[] { command });
+        if (failure != null) {
+            throw new RuntimeException(command + " failed: " + failure);
+        }
+    }
+
+    public void printMessage(String message) {
+        // the benchmark prints only its results
+    }
+
+    public void printErrorMessage(String errorMessage) {
+        failure = errorMessage;
+    }
+
+    public void onServiceNotRunning() {
+        failure = "the service is not running";
+    }
+
+    public void onServiceAlreadyRunning() {
+        failure = "the service is already running";
+    }
+
+    public void onServiceDidNotStarted() {
+        failure = "the service did not start";
+    }
+
+    public void onServiceDidNotStoped() {
+        failure = "the service did not stop";
+    }
+
+    public static void main(String[] args) {
+        new BenchService().parseArgs(args);
+    }
+}
@@ -0,0 +1,292 @@
+package com.leonardofischer.jss;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the benchmarks of the control plane and the service lifecycle, and
+ * writes their results as JSON, in the same file format of JMH (-rf json), so
+ * they can be compared between releases by the usual JMH tools.
+ *
+ * This is a small hand-written harness, not JMH, and its numbers are not as
+ * reliable as JMH results: all the benchmarks run one after the other in the
+ * same JVM (forked once by ant, not once per benchmark), so JIT profiles and
+ * garbage of one benchmark affect the next ones, and there is no Blackhole, so
+ * the JIT may remove work whose result is not used. Use them to compare runs
+ * on the same machine, not as absolute numbers.
+ *
+ * Each benchmark runs a few warmup iterations, whose results are discarded,
+ * and then the measured iterations. The score is the mean of the measured
+ * iterations, and the error is the half width of its 99.9% confidence
+ * interval.
+ *
+ * <pre>
+ * ant bench
+ * java -cp build:build/bench com.leonardofischer.jss.BenchmarkRunner [results.json] [name filter]
+ * </pre>
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class BenchmarkRunner {
+
+    /**
+     * The work measured by a benchmark.
+     */
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * Creates the operation run by each thread of a multi-threaded benchmark,
+     * so each thread can have its own state (such as a connection).
+     */
+    interface OperationFactory {
+        Operation create() throws Exception;
+    }
+
+    static final int WARMUP_ITERATIONS = 3;
+
+    static final int ITERATIONS = 5;
+
+    /**
+     * How long (in milisseconds) each iteration of the timed benchmarks runs.
+     */
+    static final long ITERATION_TIME = 1000;
+
+    private List<Result> results = new ArrayList<Result>();
+
+    private String filter;
+
+    BenchmarkRunner(String filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Returns true if the benchmark with the given name must run.
+     */
+    boolean isEnabled(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    /**
+     * Measures the average time of the operation, in nanoseconds, running it
+     * in a single thread.
+     */
+    void averageTime(String name, final Operation operation) throws Exception {
+        if (!isEnabled(name)) {
+            return;
+        }
+        double[] scores = new double[ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i) {
+            long operations = 0;
+            long start = System.nanoTime();
+            long deadline = start + ITERATION_TIME * 1000000;
+            long now;
+            do {
+                operation.run();
+                ++operations;
+                now = System.nanoTime();
+            } while (now < deadline);
+            if (i >= 0) {
+                scores[i] = (double) (now - start) / operations;
+            }
+        }
+        add(new Result(name, "avgt", 1, "ns/op", scores));
+    }
+
+    /**
+     * Measures how many operations per second are completed by the given
+     * number of threads, each one running its own operation.
+     */
+    void throughput(String name, int threads, OperationFactory factory) throws Exception {
+        if (!isEnabled(name)) {
+            return;
+        }
+        final Operation[] operations = new Operation[threads];
+        for (int i = 0; i < threads; ++i) {
+            operations[i] = factory.create();
+        }
+        double[] scores = new double[ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i) {
+            final AtomicLong completed = new AtomicLong();
+            final Exception[] failure = new Exception[1];
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final CountDownLatch finishLatch = new CountDownLatch(threads);
+            final long[] deadline = new long[1];
+            for (int t = 0; t < threads; ++t) {
+                final Operation operation = operations[t];
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        long count = 0;
+                        try {
+                            startLatch.await();
+                            while (System.nanoTime() < deadline[0]) {
+                                operation.run();
+                                ++count;
+                            }
+                        }
+                        catch (Exception e) {
+                            failure[0] = e;
+                        }
+                        completed.addAndGet(count);
+                        finishLatch.countDown();
+                    }
+                }, "Benchmark-" + name + "-" + t);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            long start = System.nanoTime();
+            deadline[0] = start + ITERATION_TIME * 1000000;
+            startLatch.countDown();
+            finishLatch.await();
+            long elapsed = System.nanoTime() - start;
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            if (i >= 0) {
+                scores[i] = completed.get() * 1e9 / elapsed;
+            }
+        }
+        add(new Result(name, "thrpt", threads, "ops/s", scores));
+    }
+
+    /**
+     * Measures the time of each single call of the operation, in
+     * milisseconds. Used for operations too slow to be repeated many times,
+     * such as starting a process.
+     * 
+     * @param setup
+     *            if not null, runs before each call, without being timed.
+     */
+    void singleShot(String name, Operation setup, Operation operation, int warmups, int samples)
+            throws Exception {
+        if (!isEnabled(name)) {
+            return;
+        }
+        double[] scores = new double[samples];
+        for (int i = -warmups; i < samples; ++i) {
+            if (setup != null) {
+                setup.run();
+            }
+            long start = System.nanoTime();
+            operation.run();
+            if (i >= 0) {
+                scores[i] = (System.nanoTime() - start) / 1e6;
+            }
+        }
+        add(new Result(name, "ss", 1, "ms/op", scores));
+    }
+
+    private void add(Result result) {
+        results.add(result);
+        System.out.println(result);
+    }
+
+    /**
+     * Writes the results in the JSON format of JMH. Only the format is the
+     * same, the measurements are not made by JMH.
+     */
+    void write(String file) throws IOException {
+        Writer out = new FileWriter(file);
+        try {
+            out.write("[\n");
+            for (int i = 0; i < results.size(); ++i) {
+                out.write(results.get(i).toJson());
+                out.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String file = args.length > 0 ? args[0] : "bench-results.json";
+        BenchmarkRunner runner = new BenchmarkRunner(args.length > 1 ? args[1] : null);
+        ProtocolBenchmarks.run(runner);
+        ServiceBenchmarks.run(runner);
+        runner.write(file);
+        System.out.println("Results written to " + file);
+    }
+
+    /**
+     * The result of a benchmark.
+     */
+    static class Result {
+        /**
+         * Student's t quantiles (0.9995) for 1 to 10 degrees of freedom, used
+         * for the 99.9% confidence interval.
+         */
+        static final double[] T_QUANTILES = { 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781,
+                4.587 };
+
+        String name;
+        String mode;
+        int threads;
+        String unit;
+        double[] scores;
+        double score;
+        double error;
+
+        Result(String name, String mode, int threads, String unit, double[] scores) {
+            this.name = name;
+            this.mode = mode;
+            this.threads = threads;
+            this.unit = unit;
+            this.scores = scores;
+            double sum = 0;
+            for (double value : scores) {
+                sum += value;
+            }
+            score = sum / scores.length;
+            if (scores.length > 1) {
+                double squares = 0;
+                for (double value : scores) {
+                    squares += (value - score) * (value - score);
+                }
+                double deviation = Math.sqrt(squares / (scores.length - 1));
+                int freedom = Math.min(scores.length - 1, T_QUANTILES.length);
+                error = T_QUANTILES[freedom - 1] * deviation / Math.sqrt(scores.length);
+            }
+            else {
+                error = Double.NaN;
+            }
+        }
+
+        String toJson() {
+            StringBuilder raw = new StringBuilder();
+            for (double value : scores) {
+                if (raw.length() > 0) {
+                    raw.append(", ");
+                }
+                raw.append(number(value));
+            }
+            return "  {\n" + "    \"benchmark\" : \"" + BenchmarkRunner.class.getPackage().getName() + "." + name
+                    + "\",\n" + "    \"mode\" : \"" + mode + "\",\n" + "    \"threads\" : " + threads + ",\n"
+                    + "    \"forks\" : 1,\n" + "    \"warmupIterations\" : " + WARMUP_ITERATIONS + ",\n"
+                    + "    \"measurementIterations\" : " + scores.length + ",\n" + "    \"primaryMetric\" : {\n"
+                    + "      \"score\" : " + number(score) + ",\n" + "      \"scoreError\" : " + number(error)
+                    + ",\n" + "      \"scoreConfidence\" : [ " + number(score - error) + ", "
+                    + number(score + error) + " ],\n" + "      \"scoreUnit\" : \"" + unit + "\",\n"
+                    + "      \"rawData\" : [ [ " + raw + " ] ]\n" + "    },\n" + "    \"secondaryMetrics\" : {}\n"
+                    + "  }";
+        }
+
+        private static String number(double value) {
+            return Double.isNaN(value) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", value);
+        }
+
+        public String toString() {
+            return String.format(Locale.ROOT, "%-40s %5s %3d %14.3f +- %10.3f %s", name, mode, threads, score,
+                    error, unit);
+        }
+    }
+}
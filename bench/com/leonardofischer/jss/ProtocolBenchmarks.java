@@ -0,0 +1,102 @@
+package com.leonardofischer.jss;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Measures the cost of parsing requests and serializing responses of the
+ * command protocol, as done by the ServiceListenerThread, without any I/O.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ProtocolBenchmarks {
+
+    static final String COMMAND = "status";
+
+    static final String[] ARGS = { "--fresh", "billing" };
+
+    static final String RESPONSE = "STATUS: the service is running" + ServiceListenerThread.LINE_SEPARATOR
+            + "Uptime: 3 days, 2 hours" + ServiceListenerThread.LINE_SEPARATOR + "Requests: 1234567";
+
+    static void run(BenchmarkRunner runner) throws Exception {
+        final Charset charset = Charset.defaultCharset();
+
+        runner.averageTime("protocol.encodeRequest", new BenchmarkRunner.Operation() {
+            ByteBuffer buffer = null;
+
+            public void run() {
+                buffer = ControlProtocol.encodeRequest(buffer, COMMAND, ARGS);
+            }
+        });
+
+        // a binary request frame, as received by the listener after the
+        // connection header
+        final ByteBuffer frame = ControlProtocol.encodeRequest(null, COMMAND, ARGS);
+        final byte[] frameBytes = new byte[frame.remaining()];
+        frame.get(frameBytes);
+        runner.averageTime("protocol.parseBinaryRequest", new BenchmarkRunner.Operation() {
+            ServiceListenerThread.Connection connection = newConnection(ServiceListenerThread.Connection.BINARY);
+
+            public void run() throws Exception {
+                connection.input.put(frameBytes);
+                if (connection.parseRequest(charset, false) == null) {
+                    throw new IllegalStateException("request not parsed");
+                }
+                connection.nextRequest();
+            }
+        });
+
+        final byte[] textBytes = (COMMAND + "\n" + ARGS[0] + "\n" + ARGS[1] + "\n\n").getBytes(charset);
+        // text clients send a single request per connection, so the cost of
+        // a new connection is included
+        runner.averageTime("protocol.parseTextRequest", new BenchmarkRunner.Operation() {
+            public void run() throws Exception {
+                ServiceListenerThread.Connection connection = newConnection(ServiceListenerThread.Connection.TEXT);
+                connection.input.put(textBytes);
+                if (connection.parseRequest(charset, false) == null) {
+                    throw new IllegalStateException("request not parsed");
+                }
+            }
+        });
+
+        runner.averageTime("protocol.encodeBinaryResponse", new BenchmarkRunner.Operation() {
+            ServiceListenerThread.Connection connection = newConnection(ServiceListenerThread.Connection.BINARY);
+
+            public void run() {
+                connection.respond(charset, RESPONSE, false);
+            }
+        });
+
+        runner.averageTime("protocol.encodeTextResponse", new BenchmarkRunner.Operation() {
+            ServiceListenerThread.Connection connection = newConnection(ServiceListenerThread.Connection.TEXT);
+
+            public void run() {
+                connection.respond(charset, RESPONSE, false);
+            }
+        });
+
+        final ByteBuffer response = ControlProtocol.encodeResponse(null, RESPONSE, false);
+        final int length = response.getInt(0);
+        final ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put(response.array(), 4, length);
+        runner.averageTime("protocol.decodeResponse", new BenchmarkRunner.Operation() {
+            public void run() {
+                if (ControlProtocol.decodeResponse(payload, length).isError()) {
+                    throw new IllegalStateException("response not decoded");
+                }
+            }
+        });
+    }
+
+    /**
+     * A connection without a channel, that already received its first
+     * request in the given protocol.
+     */
+    private static ServiceListenerThread.Connection newConnection(int protocol) {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        connection.protocol = protocol;
+        connection.accepted = true;
+        return connection;
+    }
+}
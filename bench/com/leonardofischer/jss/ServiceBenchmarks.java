@@ -0,0 +1,106 @@
+package com.leonardofischer.jss;
+
+/**
+ * Measures the control plane of a running service (ping latency and status
+ * throughput), and the time taken by the start, stop and restart commands
+ * of the ServiceController, using a BenchService process.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceBenchmarks {
+
+    static final int STATUS_CLIENTS = 8;
+
+    static final int LIFECYCLE_WARMUPS = 2;
+
+    static final int LIFECYCLE_SAMPLES = 10;
+
+    static void run(BenchmarkRunner runner) throws Exception {
+        final BenchService service = new BenchService();
+        if (runner.isEnabled("control.pingLatency") || runner.isEnabled("control.statusThroughput")
+                || runner.isEnabled("lifecycle.restart")) {
+            runWithService(runner, service);
+        }
+
+        final boolean[] running = { false };
+        runner.singleShot("lifecycle.start", new BenchmarkRunner.Operation() {
+            public void run() {
+                if (running[0]) {
+                    service.control(service.getStopCommand());
+                    running[0] = false;
+                }
+            }
+        }, new BenchmarkRunner.Operation() {
+            public void run() {
+                service.control(service.getStartCommand());
+                running[0] = true;
+            }
+        }, LIFECYCLE_WARMUPS, LIFECYCLE_SAMPLES);
+        if (running[0]) {
+            service.control(service.getStopCommand());
+        }
+
+        runner.singleShot("lifecycle.stop", new BenchmarkRunner.Operation() {
+            public void run() {
+                service.control(service.getStartCommand());
+            }
+        }, new BenchmarkRunner.Operation() {
+            public void run() {
+                service.control(service.getStopCommand());
+            }
+        }, LIFECYCLE_WARMUPS, LIFECYCLE_SAMPLES);
+    }
+
+    /**
+     * The benchmarks that need the service running.
+     */
+    private static void runWithService(BenchmarkRunner runner, final BenchService service) throws Exception {
+        final ServiceController controller = service.getServiceController();
+        service.control(service.getStartCommand());
+        try {
+            runner.averageTime("control.pingLatency", new BenchmarkRunner.Operation() {
+                ServiceConnection connection = controller.connect();
+
+                public void run() throws Exception {
+                    if (connection.send(controller.pingCommand).isError()) {
+                        throw new IllegalStateException("ping failed");
+                    }
+                }
+            });
+            runner.throughput("control.statusThroughput", 1, new StatusOperationFactory(service));
+            runner.throughput("control.statusThroughput", STATUS_CLIENTS, new StatusOperationFactory(service));
+
+            runner.singleShot("lifecycle.restart", null, new BenchmarkRunner.Operation() {
+                public void run() {
+                    service.control(service.getRestartCommand());
+                }
+            }, LIFECYCLE_WARMUPS, LIFECYCLE_SAMPLES);
+        }
+        finally {
+            service.control(service.getStopCommand());
+        }
+    }
+
+    /**
+     * Each client sends status commands through its own connection.
+     */
+    static class StatusOperationFactory implements BenchmarkRunner.OperationFactory {
+        BenchService service;
+
+        StatusOperationFactory(BenchService service) {
+            this.service = service;
+        }
+
+        public BenchmarkRunner.Operation create() throws Exception {
+            final ServiceConnection connection = service.getServiceController().connect();
+            return new BenchmarkRunner.Operation() {
+                public void run() throws Exception {
+                    if (connection.send(service.getStatusCommand()).isError()) {
+                        throw new IllegalStateException("status failed");
+                    }
+                }
+            };
+        }
+    }
+}
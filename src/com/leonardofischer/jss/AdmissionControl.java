@@ -0,0 +1,156 @@
+package com.leonardofischer.jss;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which commands received by the ServiceListenerThread are executed,
+ * using token buckets to limit how many commands each client (by its address)
+ * and each command (by its name) may send per second.
+ *
+ * Rejected commands are answered at once with an error starting with "busy",
+ * without waiting for a worker thread, and counted in the metrics. Commands
+ * of the priority lane (stop and restart) are never limited by the client
+ * rate, so a client flooding the service can't keep it from being stoped.
+ * Pings are never limited at all, so a busy service is not taken for a
+ * stopped one.
+ *
+ * Only used by the selector thread of the listener, so it is not thread
+ * safe.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class AdmissionControl {
+
+    /**
+     * The start of every response to a rejected command.
+     */
+    static final String BUSY = "busy: ";
+
+    /**
+     * The number of clients whose buckets are kept. When exceeded, the
+     * buckets of clients that didn't send anything lately are discarded.
+     */
+    static final int MAX_TRACKED_CLIENTS = 4096;
+
+    private ServiceController controller;
+
+    private Map<String, TokenBucket> clients = new HashMap<String, TokenBucket>();
+
+    private Map<String, TokenBucket> commands = new HashMap<String, TokenBucket>();
+
+    AdmissionControl(ServiceController controller) {
+        this.controller = controller;
+        for (Map.Entry<String, double[]> entry : controller.commandRateLimits.entrySet()) {
+            double[] limit = entry.getValue();
+            commands.put(entry.getKey(), new TokenBucket(limit[0], limit[1]));
+        }
+    }
+
+    /**
+     * Returns true if the request must run ahead of the others, in its own
+     * thread, and is not limited by the client rate. The ping command is
+     * answered by the selector thread itself, without any limit. Commands
+     * addressed to a service of a ServiceHost, such as 'stop
+     * billing', are not: they only affect that service, and would delay the
+     * stop of the host itself.
+     */
+    boolean isPriority(List<String> request) {
+        Service service = controller.service;
+        if (service instanceof ServiceHost && request.size() > 1
+                && ((ServiceHost) service).hasService(request.get(1))) {
+            return false;
+        }
+        String command = request.get(0);
+        return command.equals(service.getStopCommand()) || command.equals(service.getRestartCommand())
+                || command.equals(controller.pidCommand) || command.equals(controller.pingCommand);
+    }
+
+    /**
+     * Takes a token from the buckets of the client and of the command.
+     *
+     * @return null if the command may run, or the busy response if it was
+     *         rejected.
+     */
+    String admit(String client, List<String> request) {
+        String command = request.get(0);
+        if (command.equals(controller.pingCommand)) {
+            return null;
+        }
+        TokenBucket commandBucket = commands.get(command);
+        if (commandBucket != null && !commandBucket.tryAcquire()) {
+            controller.metrics.recordRejection("command_rate");
+            return BUSY + "too many " + command + " commands, try again later";
+        }
+        if (controller.clientRate > 0 && !isPriority(request) && !getClientBucket(client).tryAcquire()) {
+            controller.metrics.recordRejection("client_rate");
+            return BUSY + "too many commands from " + client + ", try again later";
+        }
+        return null;
+    }
+
+    private TokenBucket getClientBucket(String client) {
+        TokenBucket bucket = clients.get(client);
+        if (bucket == null) {
+            if (clients.size() >= MAX_TRACKED_CLIENTS) {
+                discardIdleClients();
+            }
+            bucket = new TokenBucket(controller.clientRate, controller.clientBurst);
+            clients.put(client, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * Discards the buckets that are full again, since a new bucket would be
+     * the same.
+     */
+    private void discardIdleClients() {
+        Iterator<TokenBucket> iterator = clients.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFull()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Allows up to 'rate' operations per second on average, and bursts of up
+     * to 'capacity' operations.
+     */
+    static class TokenBucket {
+        double rate;
+        double capacity;
+        double tokens;
+        long lastRefill = System.nanoTime();
+
+        TokenBucket(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1e9);
+            lastRefill = now;
+        }
+
+        boolean tryAcquire() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens -= 1;
+            return true;
+        }
+
+        boolean isFull() {
+            refill();
+            return tokens >= capacity;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.leonardofischer.jss;
+
+/**
+ * The response of a running service to a command.
+ * 
+ * @author Leonardo Garcia Fischer
+ * 
+ */
+public class CommandResult {
+
+    /**
+     * What happened to a command.
+     */
+    public enum Outcome {
+        /**
+         * The service executed the command.
+         */
+        OK,
+
+        /**
+         * The service could not execute the command.
+         */
+        ERROR,
+
+        /**
+         * The command could not be sent, because the service is not running.
+         */
+        NOT_RUNNING
+    }
+
+    private String text;
+
+    private Outcome outcome;
+
+    CommandResult(String text, boolean error) {
+        this(text, error ? Outcome.ERROR : Outcome.OK);
+    }
+
+    CommandResult(String text, Outcome outcome) {
+        this.text = text;
+        this.outcome = outcome;
+    }
+
+    /**
+     * Returns the response text, such as the string returned by
+     * Service.status(). May be empty, but never null.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Returns the response text split in lines.
+     */
+    public String[] getLines() {
+        return text.split("\r?\n");
+    }
+
+    /**
+     * Returns true if the service could not execute the command. In this
+     * case, the text describes the error.
+     */
+    public boolean isError() {
+        return outcome == Outcome.ERROR;
+    }
+
+    /**
+     * Returns true if the service didn't execute the command because it was
+     * too busy (too many connections or commands), so the command can be
+     * sent again later.
+     */
+    public boolean isBusy() {
+        return isError() && text.startsWith(AdmissionControl.BUSY);
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public String toString() {
+        return isError() ? "ERROR: " + text : text;
+    }
+}
@@ -0,0 +1,116 @@
+package com.leonardofischer.jss;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the config file of the running service, and reloads the service
+ * when the file changes.
+ *
+ * Editors and deploy tools usually write a file in many steps (or replace
+ * it), so the reload only happens after the file stops changing for a short
+ * time.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ConfigWatcher extends Thread {
+
+    /**
+     * How long (in milisseconds) the file must stay unchanged before the
+     * service is reloaded.
+     */
+    static final long SETTLE_TIME = 200;
+
+    private ServiceController controller;
+
+    private Path file;
+
+    private WatchService watchService;
+
+    ConfigWatcher(ServiceController controller, String configFile) throws IOException {
+        super("ServiceConfigWatcherThread");
+        setDaemon(true);
+        this.controller = controller;
+        this.file = new File(configFile).getAbsoluteFile().toPath();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        // the directory is watched, so replacing the file is also noticed
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                if (!pollChanges(key)) {
+                    continue;
+                }
+                // waits until the file is completely written. Changes of
+                // other files of the directory don't extend the wait
+                long lastChange = System.currentTimeMillis();
+                while (true) {
+                    long remaining = lastChange + SETTLE_TIME - System.currentTimeMillis();
+                    key = remaining > 0 ? watchService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (key == null) {
+                        reload();
+                        break;
+                    }
+                    if (pollChanges(key)) {
+                        lastChange = System.currentTimeMillis();
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // stopped
+        }
+        catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Returns true if the given key has changes of the config file.
+     */
+    private boolean pollChanges(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context != null && file.getFileName().equals(context)) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        try {
+            controller.reload(new String[0]);
+        }
+        catch (RuntimeException e) {
+            System.err.println("could not reload " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops watching the config file.
+     */
+    void close() {
+        try {
+            watchService.close();
+        }
+        catch (IOException e) {
+            // nothing else to do
+        }
+    }
+}
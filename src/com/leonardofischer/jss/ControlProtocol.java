@@ -0,0 +1,234 @@
+package com.leonardofischer.jss;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The binary framing of the commands sent to a running service.
+ *
+ * A binary connection starts with a header: the PREAMBLE, that can't be
+ * mistaken for a text command, the protocol version and an empty line. The
+ * client waits for the service to accept it, answering with the PREAMBLE, the
+ * version and a STATUS_OK byte, before sending any request. A service that
+ * only knows the text protocol reads the header as a command ended by the
+ * empty line, and answers it at once with a line break after the version, so
+ * the client falls back to the text protocol without waiting for a timeout.
+ *
+ * Then each request is a frame with a 32 bits length followed by the number
+ * of strings (command and args) and each string as a 32 bits length followed
+ * by its UTF-8 bytes. Each response is a frame with a 32 bits length,
+ * followed by a status byte and the UTF-8 bytes of the response text.
+ *
+ * Connections that don't start with the PREAMBLE use the original text
+ * protocol: one line per string, ended by an empty line.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ControlProtocol {
+
+    static final byte[] PREAMBLE = { 0, 'J', 'S', 'S' };
+
+    static final byte VERSION = 1;
+
+    /**
+     * The size of the header sent by the client at the start of a binary
+     * connection: the preamble, the version and two line breaks.
+     */
+    static final int HEADER_SIZE = PREAMBLE.length + 3;
+
+    /**
+     * The size of the answer of the service to the header: the preamble, the
+     * version and STATUS_OK.
+     */
+    static final int ACCEPT_SIZE = PREAMBLE.length + 2;
+
+    static final byte STATUS_OK = 0;
+
+    static final byte STATUS_ERROR = 1;
+
+    /**
+     * The biggest response accepted by clients, so a corrupted length (or a
+     * peer that is not a service) doesn't make them allocate any size.
+     */
+    static final int MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Returns a buffer with the connection header sent by the client, ready
+     * to be written to a channel.
+     */
+    static ByteBuffer encodeHeader() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.put(PREAMBLE);
+        buffer.put(VERSION);
+        buffer.put((byte) '\n');
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Checks the connection header at the start of the given buffer.
+     *
+     * @return the version requested by the client, or -1 if the header is
+     *         invalid.
+     */
+    static int readHeader(ByteBuffer buffer) {
+        for (int i = 0; i < PREAMBLE.length; ++i) {
+            if (buffer.get(i) != PREAMBLE[i]) {
+                return -1;
+            }
+        }
+        if (buffer.get(PREAMBLE.length + 1) != '\n' || buffer.get(PREAMBLE.length + 2) != '\n') {
+            return -1;
+        }
+        return buffer.get(PREAMBLE.length);
+    }
+
+    /**
+     * Returns a buffer with the answer of the service to a valid header,
+     * ready to be written to a channel.
+     */
+    static ByteBuffer encodeAccept() {
+        ByteBuffer buffer = ByteBuffer.allocate(ACCEPT_SIZE);
+        buffer.put(PREAMBLE);
+        buffer.put(VERSION);
+        buffer.put(STATUS_OK);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns true if the first ACCEPT_SIZE bytes of the buffer are the
+     * answer of a service that accepted the header.
+     */
+    static boolean isAccept(ByteBuffer buffer) {
+        for (int i = 0; i < PREAMBLE.length; ++i) {
+            if (buffer.get(i) != PREAMBLE[i]) {
+                return false;
+            }
+        }
+        return buffer.get(PREAMBLE.length) == VERSION && buffer.get(PREAMBLE.length + 1) == STATUS_OK;
+    }
+
+    /**
+     * Decodes the request frame starting at the given offset of the buffer,
+     * without changing its position.
+     *
+     * @return the request strings (command followed by args), or null if the
+     *         frame was not completely read yet.
+     * @throws IOException
+     *             if the frame is malformed or bigger than maxSize.
+     */
+    static List<String> decodeRequest(ByteBuffer buffer, int offset, int maxSize) throws IOException {
+        int end = buffer.position();
+        if (end < offset + 4) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length < 4 || length > maxSize) {
+            throw new IOException("invalid frame length " + length);
+        }
+        if (end < offset + 4 + length) {
+            return null;
+        }
+        int position = offset + 4;
+        int frameEnd = position + length;
+        int count = buffer.getInt(position);
+        position += 4;
+        if (count < 0 || count > length / 4) {
+            throw new IOException("invalid string count " + count);
+        }
+        List<String> strings = new ArrayList<String>(count);
+        byte[] bytes = buffer.array();
+        for (int i = 0; i < count; ++i) {
+            if (position + 4 > frameEnd) {
+                throw new IOException("truncated frame");
+            }
+            int size = buffer.getInt(position);
+            position += 4;
+            if (size < 0 || position + size > frameEnd) {
+                throw new IOException("truncated frame");
+            }
+            strings.add(new String(bytes, buffer.arrayOffset() + position, size, UTF8));
+            position += size;
+        }
+        return strings;
+    }
+
+    /**
+     * The number of bytes of the frame at the given offset of the buffer,
+     * including its length field. Only valid after decodeRequest() returned
+     * a request.
+     */
+    static int frameSize(ByteBuffer buffer, int offset) {
+        return 4 + buffer.getInt(offset);
+    }
+
+    /**
+     * Writes a response frame into the given buffer (cleared first), growing
+     * it if needed.
+     *
+     * @return the buffer with the frame, ready to be written to a channel.
+     */
+    static ByteBuffer encodeResponse(ByteBuffer buffer, String text, boolean error) {
+        byte[] bytes = text.getBytes(UTF8);
+        buffer = clear(buffer, 5 + bytes.length);
+        buffer.putInt(1 + bytes.length);
+        buffer.put(error ? STATUS_ERROR : STATUS_OK);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes a request frame into the given buffer (cleared first), growing
+     * it if needed.
+     *
+     * @return the buffer with the frame, ready to be written to a channel.
+     */
+    static ByteBuffer encodeRequest(ByteBuffer buffer, String command, String[] args) {
+        byte[][] strings = new byte[args.length + 1][];
+        int length = 4;
+        for (int i = 0; i < strings.length; ++i) {
+            strings[i] = (i == 0 ? command : args[i - 1]).getBytes(UTF8);
+            length += 4 + strings[i].length;
+        }
+        buffer = clear(buffer, 4 + length);
+        buffer.putInt(length);
+        buffer.putInt(strings.length);
+        for (int i = 0; i < strings.length; ++i) {
+            buffer.putInt(strings[i].length);
+            buffer.put(strings[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes the response frame payload (status and text) of the given
+     * length, at the start of the buffer.
+     */
+    static CommandResult decodeResponse(ByteBuffer buffer, int length) {
+        byte status = buffer.get(0);
+        String text = new String(buffer.array(), buffer.arrayOffset() + 1, length - 1, UTF8);
+        return new CommandResult(text, status != STATUS_OK);
+    }
+
+    /**
+     * Clears the given buffer, or replaces it by a bigger one if it can't hold
+     * the given number of bytes.
+     */
+    static ByteBuffer clear(ByteBuffer buffer, int size) {
+        if (buffer == null || buffer.capacity() < size) {
+            return ByteBuffer.allocate(Math.max(size, 256));
+        }
+        buffer.clear();
+        return buffer;
+    }
+}
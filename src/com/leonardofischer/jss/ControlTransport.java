@@ -0,0 +1,52 @@
+package com.leonardofischer.jss;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The kind of socket used to send commands to a running service.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+abstract class ControlTransport {
+
+    /**
+     * Creates the server channel where the running service listens for
+     * commands.
+     *
+     * @param handoff
+     *            true if the channel may be taken over by another process
+     *            during a handoff restart.
+     */
+    abstract ServerSocketChannel bind(boolean handoff) throws IOException;
+
+    /**
+     * Connects to a running service, in blocking mode.
+     */
+    abstract SocketChannel connect() throws IOException;
+
+    /**
+     * Called after the running service stopped listening, to free any
+     * resource left by bind().
+     */
+    void release() {
+    }
+
+    /**
+     * Returns true if no service listens on this address anymore, and a new
+     * one can bind it.
+     */
+    abstract boolean isReleased();
+
+    /**
+     * Returns true if this transport supports handoff restarts.
+     */
+    abstract boolean supportsHandoff();
+
+    /**
+     * A description of the address, used in messages to the user.
+     */
+    public abstract String toString();
+}
@@ -0,0 +1,88 @@
+package com.leonardofischer.jss;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The results of a command sent to many services by a ServiceFleet.
+ * 
+ * @author Leonardo Garcia Fischer
+ * 
+ */
+public class FleetResult {
+
+    private Map<ServiceEndpoint, CommandResult> results = new LinkedHashMap<ServiceEndpoint, CommandResult>();
+
+    private List<ServiceEndpoint> skipped = new ArrayList<ServiceEndpoint>();
+
+    private long duration;
+
+    void add(ServiceEndpoint endpoint, CommandResult result) {
+        results.put(endpoint, result);
+    }
+
+    void skip(ServiceEndpoint endpoint) {
+        skipped.add(endpoint);
+    }
+
+    void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * Returns the result of each target, in the same order as the targets
+     * were given. Commands that timed out or failed to be sent have the ERROR
+     * outcome.
+     */
+    public Map<ServiceEndpoint, CommandResult> getResults() {
+        return Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * Returns the targets that didn't receive the command, because a previous
+     * batch of a rolling restart failed.
+     */
+    public List<ServiceEndpoint> getSkipped() {
+        return Collections.unmodifiableList(skipped);
+    }
+
+    /**
+     * Returns the number of targets with the given outcome.
+     */
+    public int count(CommandResult.Outcome outcome) {
+        int count = 0;
+        for (CommandResult result : results.values()) {
+            if (result.getOutcome() == outcome) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if the command worked in all targets.
+     */
+    public boolean isSuccessful() {
+        return skipped.isEmpty() && count(CommandResult.Outcome.OK) == results.size();
+    }
+
+    /**
+     * Returns the time (in milisseconds) taken by the whole command.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Returns a one line summary, such as
+     * "4 targets in 120 ms: 3 ok, 1 error, 0 not running, 0 skipped".
+     */
+    public String getSummary() {
+        return (results.size() + skipped.size()) + " targets in " + duration + " ms: "
+                + count(CommandResult.Outcome.OK) + " ok, " + count(CommandResult.Outcome.ERROR) + " error, "
+                + count(CommandResult.Outcome.NOT_RUNNING) + " not running, " + skipped.size() + " skipped";
+    }
+}
@@ -0,0 +1,231 @@
+package com.leonardofischer.jss;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * How the service process is started by the ServiceController: extra JVM
+ * options (heap, GC, -XX flags), environment variables, the working directory
+ * and the use of an AppCDS archive.
+ *
+ * A profile can be built with the setters, or loaded from a properties file:
+ *
+ * <pre>
+ * jvmOptions = -Xmx256m -XX:+UseSerialGC
+ * env.TZ = UTC
+ * workingDirectory = /var/lib/myservice
+ * appCds = true
+ * appCdsArchive = /var/cache/myservice.jsa
+ * </pre>
+ *
+ * Many profiles can be kept in the same file, with the keys prefixed by the
+ * profile name, such as "small.jvmOptions".
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class LaunchProfile {
+
+    private List<String> jvmOptions = new ArrayList<String>();
+
+    private Map<String, String> environment = new LinkedHashMap<String, String>();
+
+    private String workingDirectory = null;
+
+    private boolean appCds = false;
+
+    private String appCdsArchive = null;
+
+    /**
+     * Loads the profile from the given properties file.
+     */
+    public static LaunchProfile load(String file) throws IOException {
+        return load(file, null);
+    }
+
+    /**
+     * Loads the profile with the given name from the properties file. Only
+     * the keys prefixed by the name and a dot are used.
+     */
+    public static LaunchProfile load(String file, String name) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        }
+        finally {
+            in.close();
+        }
+        return fromProperties(properties, name);
+    }
+
+    /**
+     * Reads the profile with the given name (or without a name, if null) from
+     * the given properties.
+     */
+    public static LaunchProfile fromProperties(Properties properties, String name) {
+        String prefix = name == null ? "" : name + ".";
+        LaunchProfile profile = new LaunchProfile();
+        String options = properties.getProperty(prefix + "jvmOptions");
+        if (options != null) {
+            for (String option : options.trim().split("\\s+")) {
+                if (option.length() > 0) {
+                    profile.addJvmOption(option);
+                }
+            }
+        }
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(prefix + "env.")) {
+                profile.setEnvironment(key.substring(prefix.length() + 4), properties.getProperty(key));
+            }
+        }
+        profile.setWorkingDirectory(properties.getProperty(prefix + "workingDirectory"));
+        profile.setAppCds(Boolean.parseBoolean(properties.getProperty(prefix + "appCds")));
+        profile.setAppCdsArchive(properties.getProperty(prefix + "appCdsArchive"));
+        return profile;
+    }
+
+    /**
+     * Adds an option given to the JVM of the service, such as "-Xmx256m".
+     */
+    public void addJvmOption(String option) {
+        jvmOptions.add(option);
+    }
+
+    public List<String> getJvmOptions() {
+        return Collections.unmodifiableList(jvmOptions);
+    }
+
+    /**
+     * Sets an environment variable of the service process. A null value
+     * removes the variable inherited from the current process.
+     */
+    public void setEnvironment(String name, String value) {
+        environment.put(name, value);
+    }
+
+    public Map<String, String> getEnvironment() {
+        return Collections.unmodifiableMap(environment);
+    }
+
+    /**
+     * Sets the working directory of the service process. If null (the
+     * default), the working directory of the current process is used.
+     */
+    public void setWorkingDirectory(String workingDirectory) {
+        this.workingDirectory = workingDirectory;
+    }
+
+    public String getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    /**
+     * If true, the classes loaded by the service are saved in an AppCDS
+     * archive when the first process exits, and later processes map them from
+     * the archive instead of loading them again. Needs Java 13 or newer and a
+     * classpath made only of jar files, and is ignored otherwise.
+     */
+    public void setAppCds(boolean appCds) {
+        this.appCds = appCds;
+    }
+
+    public boolean isAppCds() {
+        return appCds;
+    }
+
+    /**
+     * Sets the file of the AppCDS archive. If null (the default), a file in
+     * the temporary directory is used, named after the main class and the
+     * classpath, so a new archive is created when the classpath changes.
+     */
+    public void setAppCdsArchive(String appCdsArchive) {
+        this.appCdsArchive = appCdsArchive;
+    }
+
+    public String getAppCdsArchive() {
+        return appCdsArchive;
+    }
+
+    /**
+     * Adds the JVM options of this profile to the command line of a service
+     * process.
+     *
+     * @param dumpArchive
+     *            if true and the AppCDS archive doesn't exist yet, the process
+     *            creates it when it exits.
+     */
+    void addJvmOptions(List<String> commands, ServiceController controller, boolean dumpArchive) {
+        commands.addAll(jvmOptions);
+        if (appCds && isAppCdsSupported() && !hasDirectories(controller.classpath)) {
+            File archive = getArchiveFile(controller);
+            if (archive.isFile()) {
+                commands.add("-XX:SharedArchiveFile=" + archive.getPath());
+            }
+            else if (dumpArchive) {
+                commands.add("-XX:ArchiveClassesAtExit=" + archive.getPath());
+            }
+        }
+    }
+
+    /**
+     * Sets the environment and the working directory of a process.
+     */
+    void configure(ProcessBuilder processBuilder) {
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            if (entry.getValue() == null) {
+                processBuilder.environment().remove(entry.getKey());
+            }
+            else {
+                processBuilder.environment().put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (workingDirectory != null) {
+            processBuilder.directory(new File(workingDirectory));
+        }
+    }
+
+    File getArchiveFile(ServiceController controller) {
+        if (appCdsArchive != null) {
+            return new File(appCdsArchive);
+        }
+        String key = controller.javaBin + File.pathSeparator + controller.classpath;
+        return new File(System.getProperty("java.io.tmpdir"), "jss-" + controller.mainClass + "-"
+                + Integer.toHexString(key.hashCode()) + ".jsa");
+    }
+
+    /**
+     * Classes loaded from directories can't be archived, so AppCDS is only
+     * used if the classpath has only jar files.
+     */
+    static boolean hasDirectories(String classpath) {
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (new File(entry).isDirectory()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Dynamic AppCDS archives need Java 13. The service is assumed to run in
+     * the same Java version as the current process.
+     */
+    static boolean isAppCdsSupported() {
+        String version = System.getProperty("java.specification.version");
+        try {
+            return !version.startsWith("1.") && Integer.parseInt(version) >= 13;
+        }
+        catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.leonardofischer.jss;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An append-only journal of the lifecycle events (start, stop, restart,
+ * crashes) and control commands of a service, kept in memory-mapped segment
+ * files of a directory.
+ *
+ * Each process that writes to the journal (the one running the service, and
+ * the ones running commands such as 'start') holds a lock on the segment it
+ * appends to, so appending needs no other synchronization between processes.
+ * A new process continues the newest segment that is not locked, so short
+ * lived commands don't create a segment each. The segment names start with
+ * the time they were created, so the oldest ones are deleted first when there
+ * are too many.
+ *
+ * Records have a fixed size, and their timestamps (nanoseconds since the
+ * epoch) never go back in the same segment. Each segment header keeps the
+ * time range and the event types of its records, so queries skip segments
+ * without reading their records, and find the first record of a time range
+ * with a binary search.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class LifecycleJournal {
+
+    // event types
+    static final byte START = 1;
+    static final byte STOP = 2;
+    static final byte RESTART = 3;
+    static final byte READY = 4;
+    static final byte EXIT = 5;
+    static final byte CRASH = 6;
+    static final byte COMMAND = 7;
+
+    static final String[] TYPE_NAMES = { null, "start", "stop", "restart", "ready", "exit", "crash", "command" };
+
+    // outcomes
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+    static final byte BUSY = 2;
+
+    static final String[] OUTCOME_NAMES = { "ok", "error", "busy" };
+
+    static final String SUFFIX = ".journal";
+
+    static final int MAGIC = 0x4A53534A; // "JSSJ"
+
+    static final int VERSION = 1;
+
+    // the segment header
+    static final int HEADER_SIZE = 64;
+    static final int COUNT_OFFSET = 8;
+    static final int TYPES_OFFSET = 12;
+    static final int FIRST_OFFSET = 16;
+    static final int LAST_OFFSET = 24;
+
+    // each record
+    static final int RECORD_SIZE = 128;
+    static final int DURATION_OFFSET = 8;
+    static final int PID_OFFSET = 16;
+    static final int TYPE_OFFSET = 20;
+    static final int OUTCOME_OFFSET = 21;
+    static final int CLIENT_LENGTH_OFFSET = 22;
+    static final int DETAIL_LENGTH_OFFSET = 23;
+    static final int CLIENT_OFFSET = 24;
+    static final int MAX_CLIENT = 40;
+    static final int DETAIL_OFFSET = CLIENT_OFFSET + MAX_CLIENT;
+    static final int MAX_DETAIL = RECORD_SIZE - DETAIL_OFFSET;
+
+    /**
+     * The number of records of each segment (about 1MB).
+     */
+    static final int SEGMENT_RECORDS = 8192;
+
+    private File directory;
+
+    private int maxSegments;
+
+    private int pid;
+
+    private MappedByteBuffer segment = null;
+
+    /**
+     * The open segment file, whose lock is held while this process appends to
+     * it.
+     */
+    private RandomAccessFile segmentFile = null;
+
+    private int count = 0;
+
+    /**
+     * The wall clock time and System.nanoTime() when the journal was opened,
+     * so timestamps have nanoseconds but never go back.
+     */
+    private long baseTime = System.currentTimeMillis() * 1000000;
+
+    private long baseNanos = System.nanoTime();
+
+    private long lastTimestamp = 0;
+
+    LifecycleJournal(File directory, int maxSegments) {
+        this.directory = directory;
+        this.maxSegments = maxSegments;
+        String pid = ServiceController.getPid();
+        this.pid = pid.length() > 0 ? Integer.parseInt(pid) : 0;
+    }
+
+    /**
+     * Returns the type with the given name, or -1 if unknown.
+     */
+    static int getType(String name) {
+        return Arrays.asList(TYPE_NAMES).indexOf(name);
+    }
+
+    /**
+     * Returns the current time, in nanoseconds since the epoch.
+     */
+    long now() {
+        return baseTime + System.nanoTime() - baseNanos;
+    }
+
+    /**
+     * Appends an event to the journal.
+     *
+     * @param duration
+     *            how long (in nanoseconds) the event took, or -1 if unknown.
+     * @param client
+     *            who caused the event, such as a client address.
+     * @param detail
+     *            what happened, such as the command or an error message.
+     */
+    synchronized void record(byte type, long duration, byte outcome, String client, String detail) {
+        try {
+            if (segment == null || count == SEGMENT_RECORDS) {
+                newSegment();
+            }
+        }
+        catch (IOException e) {
+            System.err.println("could not write the journal in " + directory + ": " + e.getMessage());
+            return;
+        }
+        long timestamp = Math.max(now(), lastTimestamp + 1);
+        lastTimestamp = timestamp;
+        int offset = HEADER_SIZE + count * RECORD_SIZE;
+        segment.putLong(offset, timestamp);
+        segment.putLong(offset + DURATION_OFFSET, duration);
+        segment.putInt(offset + PID_OFFSET, pid);
+        segment.put(offset + TYPE_OFFSET, type);
+        segment.put(offset + OUTCOME_OFFSET, outcome);
+        segment.put(offset + CLIENT_LENGTH_OFFSET, (byte) put(offset + CLIENT_OFFSET, client, MAX_CLIENT));
+        segment.put(offset + DETAIL_LENGTH_OFFSET, (byte) put(offset + DETAIL_OFFSET, detail, MAX_DETAIL));
+        if (count == 0) {
+            segment.putLong(FIRST_OFFSET, timestamp);
+        }
+        segment.putLong(LAST_OFFSET, timestamp);
+        segment.putInt(TYPES_OFFSET, segment.getInt(TYPES_OFFSET) | 1 << type);
+        // readers only see the record after the count includes it
+        segment.putInt(COUNT_OFFSET, ++count);
+    }
+
+    /**
+     * Writes the string (truncated to the given size) at the offset.
+     *
+     * @return the number of bytes written.
+     */
+    private int put(int offset, String text, int maxSize) {
+        byte[] bytes = (text == null ? "" : text).getBytes(ControlProtocol.UTF8);
+        int length = Math.min(bytes.length, maxSize);
+        for (int i = 0; i < length; ++i) {
+            segment.put(offset + i, bytes[i]);
+        }
+        return length;
+    }
+
+    private void newSegment() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create the directory");
+        }
+        if (segment == null && continueSegment()) {
+            return;
+        }
+        close();
+        File file = new File(directory, String.format("%020d-%d", now(), pid) + SUFFIX);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        if (!lock(out)) {
+            out.close();
+            throw new IOException("could not lock " + file);
+        }
+        segmentFile = out;
+        segment = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) SEGMENT_RECORDS * RECORD_SIZE);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        count = 0;
+        deleteOldSegments();
+    }
+
+    /**
+     * Continues the newest segment, if it is not full nor locked by another
+     * process.
+     *
+     * @return true if the segment can be used.
+     */
+    private boolean continueSegment() throws IOException {
+        File[] segments = listSegments(directory);
+        if (segments.length == 0) {
+            return false;
+        }
+        RandomAccessFile out;
+        try {
+            out = new RandomAccessFile(segments[segments.length - 1], "rw");
+        }
+        catch (IOException e) {
+            return false;
+        }
+        long size = HEADER_SIZE + (long) SEGMENT_RECORDS * RECORD_SIZE;
+        if (out.length() == size && lock(out)) {
+            MappedByteBuffer existing = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            int existingCount = existing.getInt(COUNT_OFFSET);
+            if (existing.getInt(0) == MAGIC && existing.getInt(4) == VERSION && existingCount >= 0
+                    && existingCount < SEGMENT_RECORDS) {
+                segmentFile = out;
+                segment = existing;
+                count = existingCount;
+                lastTimestamp = existing.getLong(LAST_OFFSET);
+                return true;
+            }
+        }
+        out.close();
+        return false;
+    }
+
+    private static boolean lock(RandomAccessFile file) throws IOException {
+        try {
+            FileLock lock = file.getChannel().tryLock();
+            return lock != null;
+        }
+        catch (OverlappingFileLockException e) {
+            // used by another journal of this JVM
+            return false;
+        }
+    }
+
+    /**
+     * Releases the segment this process appends to.
+     */
+    synchronized void close() {
+        segment = null;
+        if (segmentFile != null) {
+            try {
+                // also releases the lock
+                segmentFile.close();
+            }
+            catch (IOException e) {
+                // nothing else to do
+            }
+            segmentFile = null;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments above maxSegments. Segments still locked by
+     * a process that appends to them (such as a service running for a long
+     * time) are kept.
+     */
+    private void deleteOldSegments() {
+        File[] segments = listSegments(directory);
+        int excess = segments.length - maxSegments;
+        for (int i = 0; i < segments.length && excess > 0; ++i) {
+            if (isUnlocked(segments[i]) && segments[i].delete()) {
+                --excess;
+            }
+        }
+    }
+
+    private static boolean isUnlocked(File file) {
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "rw");
+            try {
+                return lock(in);
+            }
+            finally {
+                // also releases the lock
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the segments of the journal, the oldest first.
+     */
+    static File[] listSegments(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX) && file.isFile();
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Reads the events of the given types that happened between from and to
+     * (in nanoseconds since the epoch, both inclusive).
+     *
+     * @param types
+     *            a bit mask of the event types (1 &lt;&lt; type), or -1 for
+     *            all types.
+     * @return the events, the oldest first.
+     */
+    static List<Event> query(File directory, long from, long to, int types) throws IOException {
+        List<Event> events = new ArrayList<Event>();
+        for (File file : listSegments(directory)) {
+            RandomAccessFile in;
+            try {
+                in = new RandomAccessFile(file, "r");
+            }
+            catch (IOException e) {
+                // deleted in the meantime
+                continue;
+            }
+            try {
+                if (in.length() < HEADER_SIZE) {
+                    continue;
+                }
+                ByteBuffer segment = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+                if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION) {
+                    continue;
+                }
+                int count = Math.min(segment.getInt(COUNT_OFFSET),
+                        (int) ((in.length() - HEADER_SIZE) / RECORD_SIZE));
+                if (count == 0 || segment.getLong(LAST_OFFSET) < from || segment.getLong(FIRST_OFFSET) > to
+                        || (segment.getInt(TYPES_OFFSET) & types) == 0) {
+                    continue;
+                }
+                for (int i = findFirst(segment, count, from); i < count; ++i) {
+                    int offset = HEADER_SIZE + i * RECORD_SIZE;
+                    if (segment.getLong(offset) > to) {
+                        break;
+                    }
+                    if ((1 << segment.get(offset + TYPE_OFFSET) & types) != 0) {
+                        events.add(new Event(segment, offset));
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        // segments of different processes overlap in time
+        Collections.sort(events, new Comparator<Event>() {
+            public int compare(Event a, Event b) {
+                return a.timestamp < b.timestamp ? -1 : a.timestamp == b.timestamp ? 0 : 1;
+            }
+        });
+        return events;
+    }
+
+    /**
+     * Formats the last events of the list, one per line, followed by the
+     * count, average and maximum duration of each event type in the whole
+     * list.
+     */
+    static String format(List<Event> events, int limit) {
+        String newLine = ServiceListenerThread.LINE_SEPARATOR;
+        StringBuilder out = new StringBuilder();
+        out.append(events.size()).append(" events");
+        if (events.size() > limit) {
+            out.append(", showing the last ").append(limit);
+        }
+        if (events.isEmpty()) {
+            return out.toString();
+        }
+        out.append(newLine);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.", Locale.ROOT);
+        for (Event event : events.subList(Math.max(0, events.size() - limit), events.size())) {
+            out.append(newLine).append(dateFormat.format(new Date(event.timestamp / 1000000)));
+            out.append(String.format(Locale.ROOT, "%09d  %-8s %-6s %12s  %-16s pid %-7d %s",
+                    event.timestamp % 1000000000, event.getTypeName(), event.getOutcomeName(),
+                    event.duration < 0 ? "-" : String.format(Locale.ROOT, "%.3fms", event.duration / 1e6),
+                    event.client, event.pid, event.detail));
+        }
+        out.append(newLine).append(newLine)
+                .append(String.format(Locale.ROOT, "%-8s %7s %12s %12s", "type", "count", "avg(ms)", "max(ms)"));
+        for (int type = 1; type < TYPE_NAMES.length; ++type) {
+            int count = 0;
+            int timed = 0;
+            long total = 0;
+            long max = 0;
+            for (Event event : events) {
+                if (event.type == type) {
+                    ++count;
+                    if (event.duration >= 0) {
+                        ++timed;
+                        total += event.duration;
+                        max = Math.max(max, event.duration);
+                    }
+                }
+            }
+            if (count > 0) {
+                out.append(newLine).append(String.format(Locale.ROOT, "%-8s %7d %12s %12s", TYPE_NAMES[type],
+                        count, timed == 0 ? "-" : String.format(Locale.ROOT, "%.3f", total / 1e6 / timed),
+                        timed == 0 ? "-" : String.format(Locale.ROOT, "%.3f", max / 1e6)));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the index of the first record with a timestamp not before the
+     * given time.
+     */
+    static int findFirst(ByteBuffer segment, int count, long from) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (segment.getLong(HEADER_SIZE + middle * RECORD_SIZE) < from) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * An event read from the journal.
+     */
+    static class Event {
+        long timestamp;
+        long duration;
+        int pid;
+        int type;
+        int outcome;
+        String client;
+        String detail;
+
+        Event(ByteBuffer segment, int offset) {
+            timestamp = segment.getLong(offset);
+            duration = segment.getLong(offset + DURATION_OFFSET);
+            pid = segment.getInt(offset + PID_OFFSET);
+            type = segment.get(offset + TYPE_OFFSET);
+            outcome = segment.get(offset + OUTCOME_OFFSET);
+            client = get(segment, offset + CLIENT_OFFSET, segment.get(offset + CLIENT_LENGTH_OFFSET));
+            detail = get(segment, offset + DETAIL_OFFSET, segment.get(offset + DETAIL_LENGTH_OFFSET));
+        }
+
+        private static String get(ByteBuffer segment, int offset, int length) {
+            byte[] bytes = new byte[Math.max(0, length)];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = segment.get(offset + i);
+            }
+            return new String(bytes, ControlProtocol.UTF8);
+        }
+
+        String getTypeName() {
+            return type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "unknown";
+        }
+
+        String getOutcomeName() {
+            return outcome >= 0 && outcome < OUTCOME_NAMES.length ? OUTCOME_NAMES[outcome] : "unknown";
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.leonardofischer.jss;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A minimal HTTP server that answers GET /metrics with the service metrics,
+ * so a Prometheus server can scrape them directly.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class MetricsHttpEndpoint implements HttpHandler {
+
+    ServiceMetrics metrics;
+
+    HttpServer server;
+
+    /**
+     * @param host
+     *            the address to listen at, or null for the loopback address.
+     */
+    MetricsHttpEndpoint(ServiceMetrics metrics, String host, int port) throws IOException {
+        this.metrics = metrics;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(host), port), 0);
+        server.createContext("/metrics", this);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.format().getBytes(ControlProtocol.UTF8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+        finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.leonardofischer.jss;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures the output (System.out and System.err) of the running service.
+ *
+ * The last lines are kept in memory for the 'tail' command. If a log file is
+ * set, the output is also written to it by a background thread, so the
+ * service threads never wait for the disk. When the log file reaches its
+ * maximum size, it is renamed to file.1 (file.1 to file.2, and so on) and a
+ * new one is started.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class OutputCapture {
+
+    /**
+     * The number of chunks of output waiting to be written to the log file.
+     * Output received after this limit is dropped (and counted) instead of
+     * blocking the service.
+     */
+    static final int MAX_QUEUED_CHUNKS = 8192;
+
+    /**
+     * The longest line (in bytes) kept for the tail. Output without new lines,
+     * such as progress bars, is split in lines of this size.
+     */
+    static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * Put in the queue to stop the writer thread.
+     */
+    private static final byte[] END = new byte[0];
+
+    private File logFile;
+
+    private long maxFileSize;
+
+    private int maxFiles;
+
+    private String[] lines;
+
+    private int nextLine = 0;
+
+    private long lineCount = 0;
+
+    private BlockingQueue<byte[]> queue = null;
+
+    private Thread writerThread = null;
+
+    private volatile long droppedBytes = 0;
+
+    private PrintStream originalOut;
+
+    private PrintStream originalErr;
+
+    /**
+     * @param logFile
+     *            the file where the output is written, or null to keep only
+     *            the last lines in memory.
+     * @param maxFileSize
+     *            the size (in bytes) that makes the log file to be rotated.
+     * @param maxFiles
+     *            the number of rotated files kept besides the log file.
+     * @param tailLines
+     *            the number of lines kept in memory.
+     */
+    OutputCapture(File logFile, long maxFileSize, int maxFiles, int tailLines) {
+        this.logFile = logFile;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.lines = new String[Math.max(1, tailLines)];
+    }
+
+    /**
+     * Replaces System.out and System.err by the capture streams.
+     *
+     * @param echo
+     *            if true, the output is still written to the original streams
+     *            too (used when the service runs in the console).
+     */
+    void install(boolean echo) {
+        if (logFile != null) {
+            queue = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_CHUNKS);
+            writerThread = new Thread(new Runnable() {
+                public void run() {
+                    writeLog();
+                }
+            }, "ServiceOutputWriterThread");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        originalOut = System.out;
+        originalErr = System.err;
+        System.setOut(new PrintStream(new CaptureStream(echo ? originalOut : null), true));
+        System.setErr(new PrintStream(new CaptureStream(echo ? originalErr : null), true));
+    }
+
+    /**
+     * Restores the original System.out and System.err, and waits (for a
+     * while) until the captured output is written to the log file.
+     */
+    void uninstall() {
+        System.out.flush();
+        System.err.flush();
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        if (writerThread != null) {
+            try {
+                queue.offer(END, 1, TimeUnit.SECONDS);
+                writerThread.join(5000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the last lines of output, up to the given count.
+     */
+    synchronized String tail(int count) {
+        int available = (int) Math.min(Math.min(count, lines.length), lineCount);
+        StringBuilder builder = new StringBuilder();
+        for (int i = available; i > 0; --i) {
+            if (builder.length() > 0) {
+                builder.append(System.getProperty("line.separator"));
+            }
+            builder.append(lines[(nextLine - i + lines.length) % lines.length]);
+        }
+        return builder.toString();
+    }
+
+    private synchronized void addLine(String line) {
+        lines[nextLine] = line;
+        nextLine = (nextLine + 1) % lines.length;
+        ++lineCount;
+    }
+
+    /**
+     * Queues the given output to be written to the log file, without waiting.
+     */
+    private void enqueue(byte[] bytes, int offset, int length) {
+        if (queue == null || length == 0) {
+            return;
+        }
+        byte[] chunk = new byte[length];
+        System.arraycopy(bytes, offset, chunk, 0, length);
+        if (!queue.offer(chunk)) {
+            synchronized (this) {
+                droppedBytes += length;
+            }
+        }
+    }
+
+    /**
+     * The loop of the writer thread. Output is buffered, and flushed when the
+     * queue is empty.
+     */
+    private void writeLog() {
+        OutputStream out = null;
+        long size = 0;
+        try {
+            while (true) {
+                byte[] chunk = queue.take();
+                while (chunk != null && chunk != END) {
+                    if (out == null || (size > 0 && size + chunk.length > maxFileSize)) {
+                        if (out != null) {
+                            out.close();
+                            rotate();
+                        }
+                        out = new BufferedOutputStream(new FileOutputStream(logFile, true), 64 * 1024);
+                        size = logFile.length();
+                    }
+                    out.write(chunk);
+                    size += chunk.length;
+                    chunk = queue.poll();
+                }
+                long dropped;
+                synchronized (this) {
+                    dropped = droppedBytes;
+                    droppedBytes = 0;
+                }
+                if (dropped > 0 && out != null) {
+                    byte[] note = ("[" + dropped + " bytes of output dropped]" + System.getProperty("line.separator"))
+                            .getBytes();
+                    out.write(note);
+                    size += note.length;
+                }
+                if (out != null) {
+                    out.flush();
+                }
+                if (chunk == END) {
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // stopped without writing the remaining output
+        }
+        catch (IOException e) {
+            if (originalErr != null) {
+                originalErr.println("could not write to " + logFile + ": " + e.getMessage());
+            }
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    // nothing else to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Renames the log file to file.1, file.1 to file.2 and so on, deleting
+     * the oldest one.
+     */
+    private void rotate() {
+        String path = logFile.getPath();
+        new File(path + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; --i) {
+            new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+        }
+        if (maxFiles > 0) {
+            logFile.renameTo(new File(path + ".1"));
+        }
+        else {
+            logFile.delete();
+        }
+    }
+
+    /**
+     * The stream that replaces System.out or System.err. Calls are already
+     * serialized by the PrintStream that wraps it.
+     */
+    private class CaptureStream extends OutputStream {
+
+        private OutputStream echo;
+
+        private ByteArrayOutputStream currentLine = new ByteArrayOutputStream();
+
+        CaptureStream(OutputStream echo) {
+            this.echo = echo;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            enqueue(bytes, offset, length);
+            int start = offset;
+            for (int i = offset; i < offset + length; ++i) {
+                if (bytes[i] == '\n') {
+                    append(bytes, start, i - start);
+                    endLine();
+                    start = i + 1;
+                }
+            }
+            append(bytes, start, offset + length - start);
+            if (echo != null) {
+                echo.write(bytes, offset, length);
+            }
+        }
+
+        /**
+         * Adds the bytes to the current line, ending it each time it reaches
+         * MAX_LINE_LENGTH.
+         */
+        private void append(byte[] bytes, int offset, int length) {
+            while (length > 0) {
+                int count = Math.min(length, MAX_LINE_LENGTH - currentLine.size());
+                currentLine.write(bytes, offset, count);
+                offset += count;
+                length -= count;
+                if (currentLine.size() >= MAX_LINE_LENGTH) {
+                    endLine();
+                }
+            }
+        }
+
+        private void endLine() {
+            String line = currentLine.toString();
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            addLine(line);
+            currentLine.reset();
+        }
+
+        public void flush() throws IOException {
+            if (echo != null) {
+                echo.flush();
+            }
+        }
+    }
+}
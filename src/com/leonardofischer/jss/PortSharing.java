@@ -0,0 +1,69 @@
+package com.leonardofischer.jss;
+
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Enables SO_REUSEPORT on server sockets, so the running service and the new
+ * one started by a handoff restart can listen on the same ports at the same
+ * time.
+ *
+ * The option is only available since Java 9 (and only on some operating
+ * systems), so it is accessed by reflection to keep this library compatible
+ * with older Java versions.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class PortSharing {
+
+    private static Object reusePortOption = null;
+
+    private static Method serverSocketSetOption = null;
+
+    private static Method channelSetOption = null;
+
+    static {
+        try {
+            Class<?> socketOption = Class.forName("java.net.SocketOption");
+            Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            Method supportedOptions = ServerSocketChannel.class.getMethod("supportedOptions");
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                if (((java.util.Set<?>) supportedOptions.invoke(channel)).contains(option)) {
+                    serverSocketSetOption = ServerSocket.class.getMethod("setOption", socketOption, Object.class);
+                    channelSetOption = ServerSocketChannel.class.getMethod("setOption", socketOption, Object.class);
+                    reusePortOption = option;
+                }
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch (Exception e) {
+            // not supported by this Java version or operating system
+        }
+    }
+
+    /**
+     * Returns true if server sockets can share ports in this environment.
+     */
+    static boolean isSupported() {
+        return reusePortOption != null;
+    }
+
+    /**
+     * Enables port sharing on the given unbound server channel.
+     */
+    static void enable(ServerSocketChannel channel) throws Exception {
+        channelSetOption.invoke(channel, reusePortOption, Boolean.TRUE);
+    }
+
+    /**
+     * Enables port sharing on the given unbound server socket.
+     */
+    static void enable(ServerSocket serverSocket) throws Exception {
+        serverSocketSetOption.invoke(serverSocket, reusePortOption, Boolean.TRUE);
+    }
+}
@@ -0,0 +1,150 @@
+package com.leonardofischer.jss;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+
+/**
+ * The handshake used by a process that starts the service to know when the
+ * new process is ready to receive commands, without guessing how long it takes
+ * to boot.
+ *
+ * The starting process listens on a loopback port and passes it (with a random
+ * token) to the new process as a system property. The new process connects to
+ * it and sends the token followed by READY or FAILED.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ReadinessHandshake {
+
+    static final String PROPERTY = ServiceController.class.getCanonicalName() + ".ready";
+
+    static final String READY = "ready";
+
+    static final String FAILED = "failed";
+
+    /**
+     * How often the starting process checks if the new process died while
+     * waiting for the handshake.
+     */
+    static final int POLL_INTERVAL = 50;
+
+    /**
+     * Set after the new process sent its state, so it is sent only once.
+     */
+    private static boolean signaled = false;
+
+    ServerSocket serverSocket;
+
+    String token;
+
+    /**
+     * Creates the listening side of the handshake, used by the process that
+     * starts the service.
+     */
+    ReadinessHandshake() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), 0), 1);
+        serverSocket.setSoTimeout(POLL_INTERVAL);
+        token = Long.toHexString(new SecureRandom().nextLong());
+    }
+
+    /**
+     * The JVM argument that must be given to the new process.
+     */
+    String getJvmArgument() {
+        return "-D" + PROPERTY + "=" + getPropertyValue();
+    }
+
+    /**
+     * The value of the system property that must be set in the new process.
+     */
+    String getPropertyValue() {
+        return serverSocket.getLocalPort() + ":" + token;
+    }
+
+    /**
+     * Waits until the new process sends its state, the process finishes or the
+     * timeout expires.
+     *
+     * @return true only if the new process sent READY in time.
+     */
+    boolean await(Process process, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                }
+                catch (SocketTimeoutException e) {
+                    if (hasFinished(process)) {
+                        return false;
+                    }
+                    continue;
+                }
+                try {
+                    socket.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    if (token.equals(in.readLine())) {
+                        return READY.equals(in.readLine());
+                    }
+                }
+                catch (SocketTimeoutException e) {
+                    return false;
+                }
+                finally {
+                    socket.close();
+                }
+            }
+            return false;
+        }
+        finally {
+            serverSocket.close();
+        }
+    }
+
+    private static boolean hasFinished(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        }
+        catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends the given state to the process that started this one. Does nothing
+     * if this process was not started by a ServiceController, or if the state
+     * was already sent.
+     */
+    static synchronized void signal(String state) {
+        String value = System.getProperty(PROPERTY);
+        if (signaled || value == null) {
+            return;
+        }
+        signaled = true;
+        int separator = value.indexOf(':');
+        try {
+            int port = Integer.parseInt(value.substring(0, separator));
+            Socket socket = new Socket(InetAddress.getByName(null), port);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(value.substring(separator + 1));
+            out.println(state);
+            out.close();
+            socket.close();
+        }
+        catch (Exception e) {
+            // the starting process gave up waiting, nothing else to do
+        }
+    }
+}
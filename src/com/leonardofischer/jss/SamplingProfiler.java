@@ -0,0 +1,166 @@
+package com.leonardofischer.jss;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Samples the stacks of the threads of the running service for a while, for
+ * the 'profile' command, and reports them as collapsed stacks (one line per
+ * distinct stack, with the frames from the root separated by ';' followed by
+ * the number of samples), ready to be turned into a flame graph, after a
+ * summary of the hottest frames and of the thread states.
+ *
+ * The sampling runs in the thread that executes the command, which is not
+ * sampled itself.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class SamplingProfiler {
+
+    /**
+     * The shortest interval (in milisseconds) between samples, so profiling
+     * never takes much of the service time.
+     */
+    static final long MIN_INTERVAL = 10;
+
+    static final long DEFAULT_INTERVAL = 20;
+
+    /**
+     * How many frames are listed in the summary.
+     */
+    static final int HOTTEST_FRAMES = 10;
+
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private Map<String, Integer> stacks = new HashMap<String, Integer>();
+
+    private Map<String, Integer> selfFrames = new HashMap<String, Integer>();
+
+    private Map<String, Integer> states = new TreeMap<String, Integer>();
+
+    private Set<Long> sampledThreads = new HashSet<Long>();
+
+    private int samples = 0;
+
+    private int threadSamples = 0;
+
+    /**
+     * Samples the threads for the given time.
+     *
+     * @param thread
+     *            the only thread to sample, or null to sample all threads.
+     * @return the report.
+     */
+    String profile(long duration, long interval, Thread thread) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long deadline = start + duration;
+        long self = Thread.currentThread().getId();
+        while (true) {
+            ThreadInfo[] infos;
+            if (thread == null) {
+                infos = threads.dumpAllThreads(false, false);
+            }
+            else {
+                infos = threads.getThreadInfo(new long[] { thread.getId() }, Integer.MAX_VALUE);
+            }
+            for (ThreadInfo info : infos) {
+                if (info != null && info.getThreadId() != self) {
+                    record(info);
+                }
+            }
+            ++samples;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            Thread.sleep(Math.min(interval, remaining));
+        }
+        return format(System.currentTimeMillis() - start, interval);
+    }
+
+    private void record(ThreadInfo info) {
+        StackTraceElement[] stack = info.getStackTrace();
+        if (stack.length == 0) {
+            return;
+        }
+        ++threadSamples;
+        sampledThreads.add(info.getThreadId());
+        increment(states, info.getThreadState().toString());
+        increment(selfFrames, frame(stack[0]));
+        StringBuilder collapsed = new StringBuilder();
+        for (int i = stack.length - 1; i >= 0; --i) {
+            if (collapsed.length() > 0) {
+                collapsed.append(';');
+            }
+            collapsed.append(frame(stack[i]));
+        }
+        increment(stacks, collapsed.toString());
+    }
+
+    private static String frame(StackTraceElement element) {
+        // spaces and ';' would break the collapsed format
+        return (element.getClassName() + '.' + element.getMethodName()).replace(' ', '_').replace(';', ':');
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private String format(long elapsed, long interval) {
+        String newLine = ServiceListenerThread.LINE_SEPARATOR;
+        StringBuilder out = new StringBuilder();
+        out.append("Profiled ").append(samples).append(" samples of ").append(sampledThreads.size())
+                .append(" threads in ").append(elapsed).append("ms (every ").append(interval).append("ms)")
+                .append(newLine);
+        if (threadSamples == 0) {
+            return out.toString();
+        }
+        out.append(newLine).append("Thread states:").append(newLine);
+        for (Map.Entry<String, Integer> entry : states.entrySet()) {
+            out.append(String.format(Locale.ROOT, "  %6.2f%%  %s", percent(entry.getValue()), entry.getKey()))
+                    .append(newLine);
+        }
+        out.append(newLine).append("Hottest frames:").append(newLine);
+        List<Map.Entry<String, Integer>> frames = sorted(selfFrames);
+        for (Map.Entry<String, Integer> entry : frames.subList(0, Math.min(HOTTEST_FRAMES, frames.size()))) {
+            out.append(String.format(Locale.ROOT, "  %6.2f%%  %s", percent(entry.getValue()), entry.getKey()))
+                    .append(newLine);
+        }
+        out.append(newLine).append("Collapsed stacks:");
+        for (Map.Entry<String, Integer> entry : sorted(stacks)) {
+            out.append(newLine).append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return out.toString();
+    }
+
+    private double percent(int count) {
+        return count * 100.0 / threadSamples;
+    }
+
+    /**
+     * Returns the entries with the highest counts first.
+     */
+    private static List<Map.Entry<String, Integer>> sorted(Map<String, Integer> counts) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                int compare = b.getValue().compareTo(a.getValue());
+                return compare != 0 ? compare : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return entries;
+    }
+}
@@ -1,5 +1,7 @@
 package com.leonardofischer.jss;
 
+import java.util.concurrent.ExecutorService;
+
 /**
  * Base class that must be implemented/extended to create a service that
  * responds to start/stop/restart/status commands.
@@ -8,6 +10,13 @@ package com.leonardofischer.jss;
  * call parseArgs() to handle command-line parameters. All other methods are
  * optional, but recommended to customize the service command line interface.
  * 
+ * Besides start, stop, restart and status, these command names are reserved
+ * by the library, and never reach onCommandNotHandled(): metrics, tail,
+ * redeploy, reload, fleet, watch, profile and history (and run, used to run
+ * the service in a new process). A service that needs one of these names for
+ * its own commands can rename the library command with its setter, such as
+ * setMetricsCommand().
+ * 
  * @author Leonardo Garcia Fischer
  */
 public abstract class Service {
@@ -57,6 +66,20 @@ public abstract class Service {
         serviceController.parseArgs(args);
     }
 
+    /**
+     * Tells the process that executed the start command that the service is
+     * ready to work, so it can report the service as started.
+     * 
+     * Only needed if ServiceController.setWaitForReadySignal(true) was called
+     * (usually in the main method). Otherwise, the service is considered ready
+     * as soon as it starts listening for commands, right before the start
+     * method is called. Can be called from any thread, and calling it more
+     * than once has no effect.
+     */
+    public void ready() {
+        serviceController.signalReady();
+    }
+
     /**
      * The signal sent to a running service asking for its current status.
      * Should return a string presenting the current status of the service.
@@ -71,6 +94,47 @@ public abstract class Service {
         return "STATUS: the service is running";
     }
 
+    /**
+     * The signal sent to a running service asking it to apply new args, or to
+     * read its config file again, without stopping.
+     * 
+     * Called from a different thread from the one that the start method is
+     * called, while the service keeps working. Implementations should prepare
+     * the new configuration completely before applying it (for example, by
+     * replacing a volatile reference), so the service never sees half of it.
+     * Reloads are never executed at the same time as other reloads or the stop
+     * method.
+     * 
+     * The default implementation throws an exception, telling the caller that
+     * the service can't be reloaded.
+     * 
+     * @param commandLineArgs
+     *            the args sent by the user after the 'reload' command, or the
+     *            current args if none was sent (or if the reload was caused by
+     *            a change of the config file). They replace the args given to
+     *            a restarted service.
+     * @throws RuntimeException
+     *             if the new configuration is invalid. The service must keep
+     *             the previous one in this case, and the message is sent to
+     *             the caller.
+     */
+    public void reload(String[] commandLineArgs) {
+        throw new RuntimeException("the service does not support the reload command");
+    }
+
+    /**
+     * Tells the clients following the service with the 'watch' command that
+     * its status changed. The status is computed later by calling the status
+     * method in another thread, so this method never blocks, and many calls
+     * made in a short time may result in a single update.
+     * 
+     * Does nothing if the service is not running, or if nobody is watching
+     * it.
+     */
+    public void publishStatus() {
+        serviceController.publishStatus();
+    }
+
     /**
      * This method should return a string describing how to use this service,
      * including the behavior of the start, stop, restart, status and any other
@@ -80,7 +144,8 @@ public abstract class Service {
      * the ones returned by ServiceController.getStartCommand() and others.
      * 
      * The default implementation just prints
-     * "Usage: java serviceClass {start|stop|restart|status}>"
+     * "Usage: java serviceClass {start|stop|restart|status|metrics|tail|...}",
+     * with all the commands handled by the library.
      * 
      * @return
      */
@@ -90,7 +155,11 @@ public abstract class Service {
         String stop = getStopCommand();
         String restart = getRestartCommand();
         String status = getStatusCommand();
-        return "Usage: java " + className + " {" + start + '|' + stop + '|' + restart + '|' + status + "}";
+        String others = getMetricsCommand() + '|' + getTailCommand() + '|' + getRedeployCommand() + '|'
+                + getReloadCommand() + '|' + getFleetCommand() + '|' + getWatchCommand() + '|' + getProfileCommand()
+                + '|' + getHistoryCommand();
+        return "Usage: java " + className + " {" + start + '|' + stop + '|' + restart + '|' + status + '|' + others
+                + "}";
     }
 
     public void onServiceStarted() {
@@ -116,7 +185,8 @@ public abstract class Service {
      * "It appears that the service is already running".
      */
     public void onServiceAlreadyRunning() {
-        String msg = "The service is already running, or another process is using the port " + serviceController.getPort() + ".";
+        String msg = "The service is already running, or another process is using the "
+                + serviceController.getControlAddress() + ".";
         printErrorMessage(msg);
     }
 
@@ -177,6 +247,33 @@ public abstract class Service {
         System.err.println(errorMessage);
     }
 
+    /**
+     * Returns the metrics of this service, where the service implementation
+     * can register its own counters and gauges. They are reported by the
+     * 'metrics' command, together with the metrics collected by the
+     * controller and the JVM.
+     * 
+     * @return the metrics of this service
+     */
+    public ServiceMetrics getMetrics() {
+        return serviceController.metrics;
+    }
+
+    /**
+     * Returns an executor for the blocking tasks of the service, such as
+     * waiting for network or disk I/O. Each task runs in a new virtual thread
+     * (in Java 21 or newer), so thousands of them can wait at the same time
+     * without sizing a thread pool. In older JVMs, the tasks run in platform
+     * threads created as needed.
+     * 
+     * The executor is shut down after the service stops.
+     * 
+     * @return the executor of this service
+     */
+    public ExecutorService getVirtualThreadExecutor() {
+        return serviceController.getServiceExecutor();
+    }
+
     /**
      * Returns the ServiceController instance bound to this service.
      * 
@@ -218,6 +315,70 @@ public abstract class Service {
         this.statusCommand = statusCommand;
     }
 
+    public String getMetricsCommand() {
+        return metricsCommand;
+    }
+
+    public void setMetricsCommand(String metricsCommand) {
+        this.metricsCommand = metricsCommand;
+    }
+
+    public String getTailCommand() {
+        return tailCommand;
+    }
+
+    public void setTailCommand(String tailCommand) {
+        this.tailCommand = tailCommand;
+    }
+
+    public String getRedeployCommand() {
+        return redeployCommand;
+    }
+
+    public void setRedeployCommand(String redeployCommand) {
+        this.redeployCommand = redeployCommand;
+    }
+
+    public String getReloadCommand() {
+        return reloadCommand;
+    }
+
+    public void setReloadCommand(String reloadCommand) {
+        this.reloadCommand = reloadCommand;
+    }
+
+    public String getFleetCommand() {
+        return fleetCommand;
+    }
+
+    public void setFleetCommand(String fleetCommand) {
+        this.fleetCommand = fleetCommand;
+    }
+
+    public String getWatchCommand() {
+        return watchCommand;
+    }
+
+    public void setWatchCommand(String watchCommand) {
+        this.watchCommand = watchCommand;
+    }
+
+    public String getProfileCommand() {
+        return profileCommand;
+    }
+
+    public void setProfileCommand(String profileCommand) {
+        this.profileCommand = profileCommand;
+    }
+
+    public String getHistoryCommand() {
+        return historyCommand;
+    }
+
+    public void setHistoryCommand(String historyCommand) {
+        this.historyCommand = historyCommand;
+    }
+
     public String getRunCommand() {
         return runCommand;
     }
@@ -254,5 +415,52 @@ public abstract class Service {
      */
     private String statusCommand = "status";
 
+    /**
+     * The command line string used to get the metrics of the running service
+     */
+    private String metricsCommand = "metrics";
+
+    /**
+     * The command line string used to show the last lines of output of the
+     * running service
+     */
+    private String tailCommand = "tail";
+
+    /**
+     * The command line string used to replace the running service by a new
+     * version of its classes, without restarting the JVM (only accepted if
+     * enabled with ServiceController.setRedeployEnabled())
+     */
+    private String redeployCommand = "redeploy";
+
+    /**
+     * The command line string used to apply new args to the running service
+     */
+    private String reloadCommand = "reload";
+
+    /**
+     * The command line string used to send a command to the service running
+     * in many hosts or ports at the same time
+     */
+    private String fleetCommand = "fleet";
+
+    /**
+     * The command line string used to follow the status changes of the
+     * running service
+     */
+    private String watchCommand = "watch";
+
+    /**
+     * The command line string used to sample the thread stacks of the running
+     * service for a while
+     */
+    private String profileCommand = "profile";
+
+    /**
+     * The command line string used to list the lifecycle events and commands
+     * recorded in the journal of the service
+     */
+    private String historyCommand = "history";
+
     ServiceController serviceController = new ServiceController(this);
 }
@@ -0,0 +1,357 @@
+package com.leonardofischer.jss;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Sends commands to services running in other processes (or hosts), without
+ * printing anything. Each method returns immediately with a CompletableFuture
+ * of the command result.
+ *
+ * Connections are kept open and reused for later commands to the same
+ * endpoint. Commands that take more than the timeout complete exceptionally
+ * with a TimeoutException.
+ *
+ * Instances are thread safe, and should be closed when not needed anymore.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class ServiceClient implements Closeable {
+
+    /**
+     * How often restart() checks if the new process is already listening.
+     */
+    static final int RESTART_POLL_INTERVAL = 50;
+
+    private ExecutorService executor;
+
+    private ScheduledExecutorService timer;
+
+    private ConcurrentHashMap<ServiceEndpoint, Queue<ServiceConnection>> idleConnections = new ConcurrentHashMap<ServiceEndpoint, Queue<ServiceConnection>>();
+
+    private volatile long timeout = 10000;
+
+    private volatile int maxIdleConnections = 4;
+
+    private volatile String statusCommand = "status";
+
+    private volatile String stopCommand = "stop";
+
+    private volatile String restartCommand = "restart";
+
+    private String pingCommand = ServiceController.class.getCanonicalName() + ".ping";
+
+    /**
+     * Creates a client that sends up to 16 commands at the same time.
+     */
+    public ServiceClient() {
+        this(16);
+    }
+
+    /**
+     * Creates a client that sends up to the given number of commands at the
+     * same time. Other commands wait for their turn.
+     */
+    public ServiceClient(int maxConcurrentCommands) {
+        executor = Executors.newFixedThreadPool(maxConcurrentCommands, new ClientThreadFactory("ServiceClientThread-"));
+        timer = Executors.newSingleThreadScheduledExecutor(new ClientThreadFactory("ServiceClientTimer-"));
+    }
+
+    /**
+     * Checks if a service is running in the given endpoint. The result
+     * outcome is NOT_RUNNING if it is not.
+     */
+    public CompletableFuture<CommandResult> ping(ServiceEndpoint endpoint) {
+        return send(endpoint, pingCommand);
+    }
+
+    /**
+     * Asks the service for its status, returned as the result text.
+     */
+    public CompletableFuture<CommandResult> status(ServiceEndpoint endpoint, String... args) {
+        return send(endpoint, statusCommand, args);
+    }
+
+    /**
+     * Stops the service. The result is only completed after the service
+     * stopped.
+     */
+    public CompletableFuture<CommandResult> stop(ServiceEndpoint endpoint, String... args) {
+        return send(endpoint, stopCommand, args);
+    }
+
+    /**
+     * Restarts the service in a new process. The result is only completed
+     * after the new process is listening for commands.
+     */
+    public CompletableFuture<CommandResult> restart(ServiceEndpoint endpoint, String... args) {
+        return send(endpoint, restartCommand, args);
+    }
+
+    /**
+     * Sends any command to the service. The timeout starts when the command
+     * is sent, not while it waits for its turn.
+     */
+    public CompletableFuture<CommandResult> send(final ServiceEndpoint endpoint, final String command,
+            final String... args) {
+        final CompletableFuture<CommandResult> result = new CompletableFuture<CommandResult>();
+        executor.execute(new Runnable() {
+            public void run() {
+                if (result.isDone()) {
+                    // canceled while waiting for its turn
+                    return;
+                }
+                long currentTimeout = timeout;
+                long deadline = System.currentTimeMillis() + currentTimeout;
+                final ScheduledFuture<?> timeoutTask = timer.schedule(new Runnable() {
+                    public void run() {
+                        result.completeExceptionally(new TimeoutException(command + " to " + endpoint
+                                + " timed out"));
+                    }
+                }, currentTimeout, TimeUnit.MILLISECONDS);
+                result.whenComplete(new BiConsumer<CommandResult, Throwable>() {
+                    public void accept(CommandResult value, Throwable error) {
+                        timeoutTask.cancel(false);
+                    }
+                });
+                try {
+                    result.complete(execute(endpoint, command, args, result, deadline));
+                }
+                catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Executes a command in the calling thread.
+     */
+    private CommandResult execute(ServiceEndpoint endpoint, String command, String[] args,
+            CompletableFuture<CommandResult> result, long deadline) throws Exception {
+        boolean stopping = command.equals(stopCommand) || command.equals(restartCommand);
+        boolean retry = !stopping;
+        while (true) {
+            ServiceConnection connection = stopping ? null : idleConnection(endpoint);
+            boolean reused = connection != null;
+            if (connection == null) {
+                try {
+                    connection = new ServiceConnection(endpoint.createTransport((int) timeout));
+                }
+                catch (UnknownHostException e) {
+                    throw e;
+                }
+                catch (IOException e) {
+                    return new CommandResult("The service is not running", CommandResult.Outcome.NOT_RUNNING);
+                }
+            }
+            connection.setTimeout(timeout);
+            closeOnTimeout(result, connection);
+            CommandResult commandResult;
+            try {
+                commandResult = connection.send(command, args);
+            }
+            catch (IOException e) {
+                close(connection);
+                if (result.isDone()) {
+                    throw e;
+                }
+                if (reused && retry && !(e instanceof SocketTimeoutException)) {
+                    // the idle connection was closed by the service, try a new one
+                    retry = false;
+                    continue;
+                }
+                if (stopping && !isRunning(endpoint)) {
+                    return new CommandResult("", CommandResult.Outcome.OK);
+                }
+                throw e;
+            }
+            if (stopping) {
+                close(connection);
+            }
+            else {
+                release(endpoint, connection);
+            }
+            if (command.equals(restartCommand) && !commandResult.isError()) {
+                waitUntilRunning(endpoint, deadline);
+            }
+            return commandResult;
+        }
+    }
+
+    private void closeOnTimeout(CompletableFuture<CommandResult> result, final ServiceConnection connection) {
+        result.whenComplete(new BiConsumer<CommandResult, Throwable>() {
+            public void accept(CommandResult value, Throwable error) {
+                if (error instanceof TimeoutException) {
+                    // unblocks the thread waiting for the response
+                    close(connection);
+                }
+            }
+        });
+    }
+
+    private boolean isRunning(ServiceEndpoint endpoint) {
+        try {
+            ServiceConnection connection = new ServiceConnection(endpoint.createTransport((int) timeout));
+            try {
+                connection.setTimeout(timeout);
+                CommandResult result = connection.send(pingCommand);
+                // a busy service is still running
+                return !result.isError() || result.isBusy();
+            }
+            finally {
+                close(connection);
+            }
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the new process of a restarted service answers.
+     * 
+     * @throws TimeoutException
+     *             if it doesn't answer before the deadline.
+     */
+    private void waitUntilRunning(ServiceEndpoint endpoint, long deadline) throws InterruptedException,
+            TimeoutException {
+        while (!isRunning(endpoint)) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new TimeoutException("the service at " + endpoint + " did not answer after the restart");
+            }
+            Thread.sleep(RESTART_POLL_INTERVAL);
+        }
+    }
+
+    private ServiceConnection idleConnection(ServiceEndpoint endpoint) {
+        Queue<ServiceConnection> queue = idleConnections.get(endpoint);
+        if (queue == null) {
+            return null;
+        }
+        ServiceConnection connection = queue.poll();
+        while (connection != null && !connection.isOpen()) {
+            connection = queue.poll();
+        }
+        return connection;
+    }
+
+    private void release(ServiceEndpoint endpoint, ServiceConnection connection) {
+        Queue<ServiceConnection> queue = idleConnections.get(endpoint);
+        if (queue == null) {
+            idleConnections.putIfAbsent(endpoint, new ConcurrentLinkedQueue<ServiceConnection>());
+            queue = idleConnections.get(endpoint);
+        }
+        if (queue.size() >= maxIdleConnections || executor.isShutdown()) {
+            close(connection);
+            return;
+        }
+        queue.add(connection);
+    }
+
+    private static void close(ServiceConnection connection) {
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            // nothing else to do with this connection
+        }
+    }
+
+    /**
+     * Closes all idle connections, and stops the client threads. Commands
+     * already sent are still completed.
+     */
+    public void close() {
+        executor.shutdown();
+        // the commands still waiting in the executor need the timer
+        Thread closer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                        // still sending commands
+                    }
+                }
+                catch (InterruptedException e) {
+                    // shut down anyway
+                }
+                timer.shutdown();
+            }
+        }, "ServiceClientCloser");
+        closer.setDaemon(true);
+        closer.start();
+        for (Queue<ServiceConnection> queue : idleConnections.values()) {
+            ServiceConnection connection = queue.poll();
+            while (connection != null) {
+                close(connection);
+                connection = queue.poll();
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum time (in milisseconds) that a command may take,
+     * including the time to connect to the service. Defaults to 10 seconds.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how many idle connections are kept open for each endpoint.
+     * Defaults to 4.
+     */
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    /**
+     * Uses the same command names as the given service, in case they were
+     * customized with Service.setStatusCommand() and others.
+     */
+    public void setCommandsOf(Service service) {
+        statusCommand = service.getStatusCommand();
+        stopCommand = service.getStopCommand();
+        restartCommand = service.getRestartCommand();
+    }
+
+    private static class ClientThreadFactory implements ThreadFactory {
+        String prefix;
+        AtomicInteger count = new AtomicInteger();
+
+        ClientThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.leonardofischer.jss;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A connection to a running service, that can be used to send any number of
+ * commands. Created by ServiceController.connect().
+ *
+ * Each command costs a single round trip. Many commands can also be sent at
+ * once with sendAll(), and the service answers them in order without waiting
+ * for the client between them.
+ *
+ * Services of older versions of this library, that only know the text
+ * protocol, are detected when the connection is created. Each command sent to
+ * them uses a new connection, since they close it after each response.
+ *
+ * Instances are not thread safe, but close() may be called by any thread to
+ * stop waiting for a response.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class ServiceConnection implements Closeable {
+
+    /**
+     * The maximum number of commands written by sendAll() before reading
+     * their responses, so neither side blocks with full socket buffers.
+     */
+    static final int MAX_PIPELINED_COMMANDS = 32;
+
+    /**
+     * How long (in milisseconds) to wait for the service to answer the
+     * header of the binary protocol. Services of any version answer it at
+     * once.
+     */
+    static final long HANDSHAKE_TIMEOUT = 10000;
+
+    private ControlTransport transport;
+
+    private SocketChannel channel;
+
+    private Selector selector;
+
+    private ByteBuffer buffer = null;
+
+    /**
+     * False if the service only knows the text protocol.
+     */
+    private boolean binary;
+
+    private volatile boolean closed = false;
+
+    private long timeout = 0;
+
+    ServiceConnection(ControlTransport transport) throws IOException {
+        this.transport = transport;
+        this.selector = Selector.open();
+        try {
+            open();
+            binary = handshake();
+            if (!binary) {
+                // each text command opens its own connection
+                channel.close();
+                channel = null;
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the maximum time (in milisseconds) to wait for each response, or 0
+     * (the default) to wait as long as the command takes. When it expires,
+     * the connection is closed and the command fails with a
+     * SocketTimeoutException.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sends the given command and waits for its response.
+     *
+     * @throws IOException
+     *             if the connection was closed before the response arrived.
+     */
+    public CommandResult send(String command, String... args) throws IOException {
+        if (!binary) {
+            return sendText(command, args);
+        }
+        write(command, args);
+        return read();
+    }
+
+    /**
+     * Sends all the given commands, and then reads all the responses.
+     *
+     * @param commands
+     *            each element is a command followed by its args.
+     * @return the responses, in the same order as the commands.
+     * @throws IOException
+     *             if the connection was closed before all responses arrived.
+     */
+    public List<CommandResult> sendAll(List<String[]> commands) throws IOException {
+        List<CommandResult> results = new ArrayList<CommandResult>(commands.size());
+        // text commands can't be pipelined
+        int maxBatch = binary ? MAX_PIPELINED_COMMANDS : 1;
+        int sent = 0;
+        while (sent < commands.size()) {
+            int batch = Math.min(maxBatch, commands.size() - sent);
+            for (int i = sent; i < sent + batch; ++i) {
+                String[] command = commands.get(i);
+                String[] args = new String[command.length - 1];
+                System.arraycopy(command, 1, args, 0, args.length);
+                if (binary) {
+                    write(command[0], args);
+                }
+                else {
+                    results.add(sendText(command[0], args));
+                }
+            }
+            if (binary) {
+                for (int i = 0; i < batch; ++i) {
+                    results.add(read());
+                }
+            }
+            sent += batch;
+        }
+        return results;
+    }
+
+    /**
+     * Waits for the next response sent by the service without a new command,
+     * such as the updates that follow the 'watch' command.
+     *
+     * @throws IOException
+     *             if the connection was closed before the response arrived,
+     *             or if the service only knows the text protocol.
+     */
+    public CommandResult receive() throws IOException {
+        if (!binary) {
+            throw new IOException("the service closes the connection after each response");
+        }
+        return read();
+    }
+
+    /**
+     * Returns false after the connection was closed by any side.
+     */
+    public boolean isOpen() {
+        if (!binary) {
+            return !closed;
+        }
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        finally {
+            // also wakes up a thread waiting for a response
+            selector.close();
+        }
+    }
+
+    private void open() throws IOException {
+        channel = transport.connect();
+        channel.configureBlocking(false);
+        channel.register(selector, 0);
+    }
+
+    /**
+     * Sends the header of the binary protocol, and reads the answer.
+     *
+     * @return true if the service accepted it, or false if it only knows the
+     *         text protocol.
+     */
+    private boolean handshake() throws IOException {
+        buffer = ControlProtocol.encodeHeader();
+        long deadline = System.currentTimeMillis() + HANDSHAKE_TIMEOUT;
+        writeFully(deadline);
+        buffer = ControlProtocol.clear(buffer, ControlProtocol.ACCEPT_SIZE);
+        buffer.limit(ControlProtocol.ACCEPT_SIZE);
+        return readFully(deadline) && ControlProtocol.isAccept(buffer);
+    }
+
+    private void write(String command, String[] args) throws IOException {
+        buffer = ControlProtocol.encodeRequest(buffer, command, args);
+        writeFully(getDeadline());
+    }
+
+    private CommandResult read() throws IOException {
+        long deadline = getDeadline();
+        buffer = ControlProtocol.clear(buffer, 4);
+        buffer.limit(4);
+        readResponse(deadline);
+        int length = buffer.getInt(0);
+        if (length < 1 || length > ControlProtocol.MAX_RESPONSE_SIZE) {
+            close();
+            throw new IOException("invalid frame length " + length);
+        }
+        buffer = ControlProtocol.clear(buffer, length);
+        buffer.limit(length);
+        readResponse(deadline);
+        return ControlProtocol.decodeResponse(buffer, length);
+    }
+
+    private void readResponse(long deadline) throws IOException {
+        if (!readFully(deadline)) {
+            close();
+            throw new EOFException("connection closed by the service");
+        }
+    }
+
+    /**
+     * Sends a command with the text protocol, in a new connection closed by
+     * the service after the response.
+     */
+    private CommandResult sendText(String command, String[] args) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        long deadline = getDeadline();
+        Charset charset = Charset.defaultCharset();
+        StringBuilder request = new StringBuilder(command).append('\n');
+        for (String arg : args) {
+            request.append(arg).append('\n');
+        }
+        request.append('\n');
+        open();
+        try {
+            buffer = ByteBuffer.wrap(request.toString().getBytes(charset));
+            writeFully(deadline);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            buffer = ByteBuffer.allocate(512);
+            while (readFully(deadline)) {
+                response.write(buffer.array(), 0, buffer.position());
+                if (response.size() > ControlProtocol.MAX_RESPONSE_SIZE) {
+                    throw new IOException("response too long");
+                }
+                buffer.clear();
+            }
+            response.write(buffer.array(), 0, buffer.position());
+            String text = new String(response.toByteArray(), charset);
+            // the response is followed by an empty line
+            for (int i = 0; i < 2; ++i) {
+                if (text.endsWith("\r\n")) {
+                    text = text.substring(0, text.length() - 2);
+                }
+                else if (text.endsWith("\n")) {
+                    text = text.substring(0, text.length() - 1);
+                }
+            }
+            if (text.startsWith("ERROR: ")) {
+                return new CommandResult(text.substring(7), true);
+            }
+            return new CommandResult(text, false);
+        }
+        finally {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        }
+    }
+
+    private long getDeadline() {
+        return timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+    }
+
+    private void writeFully(long deadline) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                await(SelectionKey.OP_WRITE, deadline);
+            }
+        }
+    }
+
+    /**
+     * Reads until the buffer is full.
+     *
+     * @return false if the service closed the connection before.
+     */
+    private boolean readFully(long deadline) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read < 0) {
+                return false;
+            }
+            if (read == 0) {
+                await(SelectionKey.OP_READ, deadline);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the channel is ready for the given operation.
+     *
+     * @param deadline
+     *            when to give up, or 0 to wait forever.
+     */
+    private void await(int operation, long deadline) throws IOException {
+        long remaining = 0;
+        if (deadline > 0) {
+            remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                close();
+                throw new SocketTimeoutException("the service did not answer in time");
+            }
+        }
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            throw new ClosedChannelException();
+        }
+        try {
+            key.interestOps(operation);
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        }
+        catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+        catch (CancelledKeyException e) {
+            throw new ClosedChannelException();
+        }
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+}
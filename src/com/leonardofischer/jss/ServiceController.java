@@ -1,16 +1,30 @@
 package com.leonardofischer.jss;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Object responsible for controlling the service (starting, stoping,
@@ -47,15 +61,42 @@ public class ServiceController {
     int port = 6400;
 
     /**
-     * During the restart command, this is the time (in milisseconds) that the
-     * current process should wait after sending the stop command to a running
-     * service. The new service will be started only after this time has passed.
+     * The host where the service runs, used by the commands sent to it (such
+     * as 'status' and 'stop'). If null (the default), the local host is used.
+     * The service is always started and run in the local host.
+     */
+    String host = null;
+
+    /**
+     * The Unix domain socket file that the service will listen for commands.
+     * If null (the default), the port is used instead.
+     */
+    String unixSocketPath = null;
+
+    /**
+     * During the restart command, this is the maximum time (in milisseconds)
+     * that the current process should wait after sending the stop command to a
+     * running service. The new service is started as soon as the port is
+     * released, or after this time has passed.
      * 
      * This time is needed to let the previous running service close the
      * listener socket, so a new one in the same port can be created.
      */
     int restartWaitTime = 1000;
 
+    /**
+     * The maximum time (in milisseconds) that the start command waits for the
+     * new process to tell that the service is ready.
+     */
+    int startTimeout = 30000;
+
+    /**
+     * If false, the service is considered ready as soon as the listener socket
+     * is bound. If true, the start command only reports the service as started
+     * after the service calls Service.ready().
+     */
+    boolean waitForReadySignal = false;
+
     /**
      * The args being managed while the service is not running.
      */
@@ -66,29 +107,399 @@ public class ServiceController {
      */
     Service service;
 
+    /**
+     * If greater than zero, the running service keeps the result of
+     * Service.status() (without args) and refreshes it in background with
+     * this interval (in milisseconds). Status requests are answered with the
+     * last result, unless they ask for a fresh one with 'status --fresh'.
+     * 
+     * Zero (the default) calls Service.status() for every request.
+     */
+    long statusCacheTtl = 0;
+
+    /**
+     * The status cache of the running service, if statusCacheTtl is set.
+     */
+    StatusCache statusCache = null;
+
+    /**
+     * The metrics of the running service.
+     */
+    ServiceMetrics metrics = new ServiceMetrics();
+
+    /**
+     * If greater than zero, the running service also answers HTTP requests
+     * for /metrics in this port, so Prometheus can scrape it directly.
+     */
+    int metricsHttpPort = 0;
+
+    /**
+     * The address where the metrics HTTP endpoint listens. If null (the
+     * default), only the loopback address, so the metrics are not exposed to
+     * the network unless asked for.
+     */
+    String metricsHttpHost = null;
+
+    /**
+     * The file where the output (System.out and System.err) of the service
+     * started in a new process is written. If null (the default), the output
+     * is only kept in memory, for the 'tail' command.
+     */
+    String logFile = null;
+
+    /**
+     * Appended to the log file name to get the file where the output not
+     * captured by the service is written: what the JVM writes directly, such
+     * as crash messages, and the messages of the supervisor process.
+     */
+    static final String RAW_OUTPUT_SUFFIX = ".out";
+
+    /**
+     * The size (in bytes) that makes the log file to be rotated.
+     */
+    long logMaxSize = 10 * 1024 * 1024;
+
+    /**
+     * The number of rotated log files (file.1, file.2, ...) kept besides the
+     * log file.
+     */
+    int logMaxFiles = 5;
+
+    /**
+     * The number of output lines kept in memory by the running service, for
+     * the 'tail' command.
+     */
+    int tailLines = 1000;
+
+    /**
+     * The number of lines returned by the 'tail' command if not given.
+     */
+    static final int DEFAULT_TAIL_COUNT = 20;
+
+    /**
+     * Captures the output of the running service.
+     */
+    OutputCapture outputCapture = null;
+
+    /**
+     * The status command arg that skips the status cache.
+     */
+    static final String FRESH_STATUS_ARG = "--fresh";
+
+    /**
+     * The HTTP endpoint of the running service metrics, if metricsHttpPort is
+     * set.
+     */
+    MetricsHttpEndpoint metricsEndpoint = null;
+
+    /**
+     * Set when the running service receives a restart command without
+     * handoff, so it starts itself again in a new process after it stops.
+     */
+    volatile boolean relaunchRequested = false;
+
     /**
      * The thread that listens for commands after the thread start (such as
      * status and stop).
      */
     ServiceListenerThread serviceListener = null;
 
+    /**
+     * If true, the restart command starts the new process before stopping the
+     * running one. Both processes listen on the same ports (using
+     * SO_REUSEPORT) until the new one is ready, so there is no moment where
+     * the service is not listening. Must be set in both the running service
+     * and the process executing the restart command (usually in the main
+     * method).
+     * 
+     * If port sharing is not supported by the Java version or the operating
+     * system, a normal restart is executed.
+     */
+    boolean handoffRestart = false;
+
+    /**
+     * The system property given to the new process started by a handoff
+     * restart, so it does not refuse to listen on the port of the running
+     * service.
+     */
+    static final String HANDOFF_PROPERTY = ServiceController.class.getCanonicalName() + ".handoff";
+
+    /**
+     * If true, the start command starts a supervisor process, that starts the
+     * service in another process and starts it again if it crashes (exits
+     * with a code other than zero) or stops answering pings.
+     * 
+     * Handoff restarts are not used for supervised services.
+     */
+    boolean supervised = false;
+
+    /**
+     * How often (in milisseconds) the supervisor pings the service.
+     */
+    long supervisorPingInterval = 5000;
+
+    /**
+     * How long (in milisseconds) the supervisor waits for a ping response.
+     */
+    long supervisorPingTimeout = 5000;
+
+    /**
+     * The number of pings in a row without response that make the supervisor
+     * kill the service and start it again.
+     */
+    int supervisorPingFailures = 3;
+
+    /**
+     * Crashes of a service that ran less than this time (in milisseconds) are
+     * considered a crash loop, and restarted with an exponential backoff.
+     */
+    long minUptime = 10000;
+
+    /**
+     * The maximum delay (in milisseconds) before restarting a service in a
+     * crash loop.
+     */
+    long maxRestartDelay = 60000;
+
+    /**
+     * The number of crashes in a row (each before minUptime) that make the
+     * supervisor give up. Zero never gives up.
+     */
+    int maxCrashLoopRestarts = 10;
+
+    /**
+     * The system property given to the supervisor process.
+     */
+    static final String SUPERVISOR_PROPERTY = ServiceController.class.getCanonicalName() + ".supervisor";
+
+    /**
+     * The system property given to the process started by the supervisor,
+     * with the number of restarts and the last exit code.
+     */
+    static final String SUPERVISED_PROPERTY = ServiceController.class.getCanonicalName() + ".supervised";
+
+    /**
+     * If true, the running service keeps a standby process: a spare JVM,
+     * already booted, that runs the service when it is restarted. A new
+     * standby is started after each restart.
+     * 
+     * Not used for supervised services.
+     */
+    boolean standby = false;
+
+    /**
+     * The config file of the service. If set, the running service is reloaded
+     * when the file changes.
+     */
+    String configFile = null;
+
+    /**
+     * The state file written by the running service, if set.
+     */
+    String stateFile = null;
+
+    /**
+     * How often (in milisseconds) the running service updates the heartbeat
+     * of its state file.
+     */
+    long heartbeatInterval = 1000;
+
+    /**
+     * The state file of the running service, if enabled.
+     */
+    volatile StateFile serviceState = null;
+
+    /**
+     * Watches the config file of the running service, if set.
+     */
+    ConfigWatcher configWatcher = null;
+
+    /**
+     * Keeps the service instance running in this JVM, replaced by the
+     * 'redeploy' command.
+     */
+    ServiceDeployer deployer;
+
+    /**
+     * If true, the running service accepts the 'redeploy' command. Disabled
+     * by default, since it loads and runs classes from any path given by a
+     * client.
+     */
+    boolean redeployEnabled = false;
+
+    /**
+     * The JVM options, environment and working directory of the processes
+     * started by this controller.
+     */
+    LaunchProfile launchProfile = new LaunchProfile();
+
+    /**
+     * The standby process of the running service, if enabled.
+     */
+    StandbyProcess standbyProcess = null;
+
+    /**
+     * The number of threads that execute the commands received by the
+     * serviceListener. Commands such as 'status' from different clients run in
+     * parallel, up to this limit.
+     */
+    int commandWorkerThreads = 4;
+
+    /**
+     * If true, each command received by the serviceListener runs in its own
+     * virtual thread, instead of the pool of commandWorkerThreads.
+     */
+    boolean virtualThreads = false;
+
+    /**
+     * The executor returned by Service.getVirtualThreadExecutor(), created on
+     * first use.
+     */
+    ExecutorService serviceExecutor = null;
+
+    /**
+     * The number of commands that may wait for a free worker thread. Commands
+     * received after this limit is reached are answered with an error.
+     */
+    int maxPendingCommands = 64;
+
+    /**
+     * The number of connections that may follow the service with the 'watch'
+     * command at the same time.
+     */
+    int maxWatchers = 16;
+
+    /**
+     * The shortest interval (in milisseconds) of periodic 'watch' updates.
+     */
+    static final long MIN_WATCH_INTERVAL = 100;
+
+    /**
+     * The longest time (in milisseconds) the 'profile' command may run.
+     */
+    long maxProfileTime = 60000;
+
+    /**
+     * Set while the 'profile' command runs, so only one runs at a time.
+     */
+    AtomicBoolean profiling = new AtomicBoolean();
+
+    /**
+     * The number of seconds profiled if not given.
+     */
+    static final int DEFAULT_PROFILE_SECONDS = 10;
+
+    /**
+     * The directory of the lifecycle journal, or null if disabled.
+     */
+    String journalDirectory = null;
+
+    /**
+     * How many segment files of the journal are kept.
+     */
+    int maxJournalSegments = 16;
+
+    /**
+     * The journal of this process, opened on first use.
+     */
+    private LifecycleJournal journal = null;
+
+    /**
+     * The outcome and detail recorded in the journal for the start, stop or
+     * restart command executed by this process.
+     */
+    private byte lifecycleOutcome;
+
+    private String lifecycleDetail;
+
+    /**
+     * Set when the READY event was recorded, since the service may signal
+     * that it is ready more than once.
+     */
+    private boolean readyRecorded = false;
+
+    /**
+     * The number of events listed by the 'history' command if not given.
+     */
+    static final int DEFAULT_HISTORY_LIMIT = 50;
+
+    /**
+     * The number of control connections that may be open at the same time,
+     * or 0 for no limit.
+     */
+    int maxConnections = 0;
+
+    /**
+     * How many commands per second each client may send on average, or 0 for
+     * no limit.
+     */
+    double clientRate = 0;
+
+    /**
+     * How many commands each client may send at once, above clientRate.
+     */
+    double clientBurst = 0;
+
+    /**
+     * The rate and burst limits of each command, by name.
+     */
+    Map<String, double[]> commandRateLimits = new LinkedHashMap<String, double[]>();
+
     String pingCommand = ServiceController.class.getCanonicalName() + ".ping";
 
+    /**
+     * How long (in milisseconds) to wait for the answer to a ping. Pings are
+     * answered by the listener thread at once, so a service that takes
+     * longer is hung.
+     */
+    static final long PING_TIMEOUT = 5000;
+
+    /**
+     * The command that returns the process id of the running service, used
+     * to kill it if it doesn't stop in time.
+     */
+    String pidCommand = ServiceController.class.getCanonicalName() + ".pid";
+
+    /**
+     * If greater than zero, the maximum time (in milisseconds) that the
+     * running service has to return from Service.start() after the stop
+     * command. After that, the thread running it is interrupted, and if it
+     * still doesn't return in stopInterruptTime, the process executing the
+     * stop command kills it. Zero (the default) waits forever.
+     */
+    long stopTimeout = 0;
+
+    /**
+     * The time (in milisseconds) that the service has to stop after being
+     * interrupted, when stopTimeout expires.
+     */
+    long stopInterruptTime = 5000;
+
+    /**
+     * The extra time (in milisseconds) that the stop command waits for the
+     * response after stopTimeout and stopInterruptTime, before killing a
+     * service that doesn't answer.
+     */
+    static final long STOP_RESPONSE_MARGIN = 2000;
+
     /**
      * The lock that keeps the serviceListener to send the finished token before
      * the Service.start() method finishes its execution.
      * 
      * Without this lock, the service may be restarted before the current
      * running service finishes its execution.
+     * 
+     * Not a monitor, since waiting for a monitor pins a virtual thread to its
+     * carrier thread.
      */
-    Object executionLock = new Object();
+    ReentrantLock executionLock = new ReentrantLock();
 
     /**
-     * The lock that prevents the ServerSocket from being closed during a
-     * command manipulation.
+     * The lock that serializes the stop/restart commands handled by the
+     * serviceListener.
      * 
-     * Without this lock, the service may close the server socket before
-     * finishing to send the response to a stop command.
+     * Without this lock, concurrent stop commands may call Service.stop() more
+     * than once.
      */
     Object shutdownLock = new Object();
 
@@ -104,6 +515,7 @@ public class ServiceController {
             throw new RuntimeException("service must not be null");
         }
         this.service = service;
+        this.deployer = new ServiceDeployer(this, service);
 
         String separator = System.getProperty("file.separator");
         javaBin = System.getProperty("java.home") + separator + "bin" + separator + "java";
@@ -136,282 +548,1941 @@ public class ServiceController {
      * @param serviceArgs
      */
     private void executeCommand(String command) {
-        if (service.getStartCommand().equals(command)) {
+        if (isHostedServiceCommand(command)) {
+            sendCommand(command);
+        }
+        else if (service.getStartCommand().equals(command)) {
+            long start = beginLifecycle();
             startService();
+            recordLifecycle(LifecycleJournal.START, start);
         }
         else if (service.getRunCommand().equals(command)) {
             runService();
         }
         else if (service.getStopCommand().equals(command)) {
+            long start = beginLifecycle();
             stopService();
+            recordLifecycle(LifecycleJournal.STOP, start);
         }
         else if (service.getRestartCommand().equals(command)) {
+            long start = beginLifecycle();
             restartService();
+            recordLifecycle(LifecycleJournal.RESTART, start);
         }
         else if (service.getStatusCommand().equals(command)) {
             showServiceStatus();
         }
+        else if (service.getMetricsCommand().equals(command) || service.getTailCommand().equals(command)
+                || service.getRedeployCommand().equals(command) || service.getReloadCommand().equals(command)
+                || service.getProfileCommand().equals(command)) {
+            sendCommand(command);
+        }
+        else if (service.getFleetCommand().equals(command)) {
+            controlFleet();
+        }
+        else if (service.getWatchCommand().equals(command)) {
+            watchService();
+        }
+        else if (service.getHistoryCommand().equals(command)) {
+            showHistory();
+        }
         else {
             service.onCommandNotHandled(command, serviceArgs);
         }
     }
 
+    /**
+     * Returns true if the command is addressed to a service of a running
+     * ServiceHost, so it must be sent to the host instead of being executed
+     * here.
+     */
+    private boolean isHostedServiceCommand(String command) {
+        if (!(service instanceof ServiceHost) || serviceArgs.length == 0
+                || !((ServiceHost) service).hasService(serviceArgs[0])) {
+            return false;
+        }
+        if (service.getStartCommand().equals(command)) {
+            // a host that is not running is started with the given services
+            return isServiceRunning();
+        }
+        return service.getStopCommand().equals(command) || service.getRestartCommand().equals(command)
+                || service.getStatusCommand().equals(command);
+    }
+
     // based on
     // http://stackoverflow.com/questions/1229605/is-this-really-the-best-way-to-start-a-second-jvm-from-java-code
     void startService() {
         if (isServiceRunning()) {
+            lifecycleFailed("already running");
             service.onServiceAlreadyRunning();
             return;
         }
 
-        List<String> commands = new LinkedList<String>();
-        commands.add(javaBin);
-        commands.add("-cp");
-        commands.add(classpath);
-        commands.add(mainClass);
-        commands.add(service.getRunCommand());
-        for (int i = 0; i < serviceArgs.length; ++i) {
-            commands.add(serviceArgs[i]);
-        }
-        ProcessBuilder processBuilder = new ProcessBuilder(commands);
         try {
-            processBuilder.start();
-            Thread.sleep(restartWaitTime);
-            if (isServiceRunning()) {
+            if (launchService(false)) {
                 service.onServiceStarted();
-                return;
             }
             else {
+                lifecycleFailed("did not start");
                 service.onServiceDidNotStarted();
             }
         }
         catch (Exception e) {
+            lifecycleFailed(e.toString());
             e.printStackTrace();
         }
     }
 
     /**
-     * Starts the service.
+     * Starts the service in a new process, and waits until it is ready.
      * 
-     * Will run a listener thread that will wait for latter commands, such as
-     * stop or status.
+     * @param successor
+     *            true if the new process must share the port with the
+     *            service that is running now.
+     * @return true if the new process reported that it is ready.
      */
-    void runService() {
-        try {
-            ServerSocket serverSocket = new ServerSocket(port);
-            serviceListener = new ServiceListenerThread(this, serverSocket);
-            serviceListener.start();
-            synchronized (executionLock) {
-                service.start(serviceArgs);
-            }
-            synchronized (shutdownLock) {
-                serviceListener.keepListening = false;
-                serverSocket.close();
-            }
+    private boolean launchService(boolean successor) throws IOException {
+        ReadinessHandshake handshake = new ReadinessHandshake();
+        List<String> jvmArgs = new LinkedList<String>();
+        if (successor) {
+            jvmArgs.add("-D" + HANDOFF_PROPERTY + "=true");
         }
-        catch (Exception e) {
-            service.onServiceAlreadyRunning();
+        else if (supervised) {
+            jvmArgs.add("-D" + SUPERVISOR_PROPERTY + "=true");
         }
+        Process process = launchProcess(handshake, jvmArgs, successor || !supervised);
+        return handshake.await(process, startTimeout);
     }
 
     /**
-     * Executes a thread that listen for commands sent by latter command line
-     * executions of the service
-     * 
-     * @author Leonardo Garcia Fischer
+     * Starts the service in a new process, with the given extra JVM args,
+     * without waiting for it. The handshake may be null, for processes that
+     * receive it later (standby processes).
      * 
+     * @param serviceProcess
+     *            false for the supervisor process, that doesn't get the JVM
+     *            options of the launch profile.
      */
-    private static class ServiceListenerThread extends Thread {
-        ServiceController serviceController;
-        ServerSocket serverSocket;
-        boolean keepListening = true;
-
-        ServiceListenerThread(ServiceController serviceController, ServerSocket serverSocket) {
-            this.serviceController = serviceController;
-            this.serverSocket = serverSocket;
-            this.setName("ServiceCommandListenerThread");
+    Process launchProcess(ReadinessHandshake handshake, List<String> jvmArgs, boolean serviceProcess)
+            throws IOException {
+        List<String> commands = new LinkedList<String>();
+        commands.add(javaBin);
+        commands.add("-cp");
+        commands.add(launchProfile.getWorkingDirectory() == null ? classpath : getAbsoluteClasspath());
+        if (serviceProcess) {
+            // standby processes may exit without being used, and their
+            // classes would race with the archive of the running service
+            launchProfile.addJvmOptions(commands, this, handshake != null);
         }
-
-        public void run() {
-            Socket clientSocket = null;
-
-            while (keepListening) {
-                try {
-                    clientSocket = serverSocket.accept();
-
-                    synchronized (serviceController.shutdownLock) {
-                        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                        PrintStream out = new PrintStream(clientSocket.getOutputStream(), true);
-                        ArrayList<String> argList = new ArrayList<String>(36);
-                        String inputLine = in.readLine();
-                        while (inputLine != null && !"".equals(inputLine)) {
-                            argList.add(inputLine);
-                            inputLine = in.readLine();
-                        }
-
-                        String command = argList.get(0);
-
-                        String[] args = new String[argList.size() - 1];
-                        for (int i = 1; i < args.length; ++i) {
-                            args[i - 1] = argList.get(i);
-                        }
-                        Service service = serviceController.service;
-                        if (service.getStopCommand().equals(command) || service.getRestartCommand().equals(command)) {
-                            service.stop(args);
-                            keepListening = false;
-                            synchronized (serviceController.executionLock) {
-                                out.println("");
-                            }
-                        }
-                        else if (service.getStatusCommand().equals(command)) {
-                            out.println(service.status(args));
-                            out.println("");
-                        }
-                        else if (serviceController.pingCommand.equals(command)) {
-                            out.println("pong");
-                            out.println("");
-                        }
-                        else {
-                            out.println(command);
-                            out.println("");
-                        }
-                        in.close();
-                        out.close();
-                        clientSocket.close();
-                    }
-                }
-                catch (IOException e) {
-                    keepListening = false;
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-            try {
-                serverSocket.close();
-            }
-            catch (IOException e) {
-                e.printStackTrace();
+        if (handshake != null) {
+            commands.add(handshake.getJvmArgument());
+        }
+        commands.addAll(jvmArgs);
+        commands.add(mainClass);
+        commands.add(service.getRunCommand());
+        for (int i = 0; i < serviceArgs.length; ++i) {
+            commands.add(serviceArgs[i]);
+        }
+        ProcessBuilder processBuilder = new ProcessBuilder(commands);
+        launchProfile.configure(processBuilder);
+        // nobody reads the output of the new process after this one exits, so
+        // it must not go to a pipe. The running service captures its own
+        // output, only what is written directly by the JVM gets here. It
+        // can't go to the log file, that is renamed by the capture when
+        // rotated.
+        processBuilder.redirectErrorStream(true);
+        if (logFile != null) {
+            File file = new File(logFile + RAW_OUTPUT_SUFFIX);
+            if (!file.isAbsolute() && launchProfile.getWorkingDirectory() != null) {
+                // next to the file that the service opens in its working
+                // directory
+                file = new File(launchProfile.getWorkingDirectory(), file.getPath());
             }
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(file));
         }
-    }
+        else {
+            processBuilder.redirectOutput(ProcessBuilder.Redirect.to(new File(getNullDevice())));
+        }
+        return processBuilder.start();
+    }
 
     /**
-     * Sends the stop command to the running service.
+     * Starts the service.
+     * 
+     * Will run a listener thread that will wait for latter commands, such as
+     * stop or status.
      */
-    void stopService() {
-        if (isServiceRunning()) {
-            sendCommand(service.getStopCommand());
-            if (!isServiceRunning()) {
-                service.onServiceStoped();
+    void runService() {
+        if (Boolean.getBoolean(SUPERVISOR_PROPERTY)) {
+            new ServiceSupervisor(this).run();
+            return;
+        }
+        String standbyValue = System.getProperty(StandbyProcess.PROPERTY);
+        if (standbyValue != null) {
+            String[] args = StandbyProcess.awaitActivation(standbyValue);
+            if (args == null) {
+                // the service this process was waiting for stopped
+                return;
             }
-            else {
-                service.onServiceDidNotStoped();
+            // started before a reload, the command line may have old args
+            serviceArgs = args;
+            metrics.markStarting();
+        }
+        boolean bound = false;
+        try {
+            ControlTransport transport = getTransport();
+            boolean handoff = isHandoffEnabled();
+            if (!Boolean.getBoolean(HANDOFF_PROPERTY) && isServiceRunning()) {
+                throw new IOException("the " + transport + " is already in use");
+            }
+            ServerSocketChannel serverChannel = transport.bind(handoff);
+            bound = true;
+            // started by a ServiceController, the console is not read by anyone
+            boolean console = System.getProperty(ReadinessHandshake.PROPERTY) == null;
+            outputCapture = new OutputCapture(console || logFile == null ? null : new File(logFile), logMaxSize,
+                    logMaxFiles, tailLines);
+            outputCapture.install(console);
+            ServerSocketChannel instanceChannel = null;
+            if (handoff) {
+                instanceChannel = ServerSocketChannel.open();
+                instanceChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+            }
+            serviceListener = new ServiceListenerThread(this, serverChannel, instanceChannel);
+            if (!handoff) {
+                // with handoff, the new process may already own the address
+                serviceListener.transportToRelease = transport;
+            }
+            if (statusCacheTtl > 0) {
+                statusCache = new StatusCache(deployer, statusCacheTtl);
+                statusCache.start();
+            }
+            if (metricsHttpPort > 0) {
+                metricsEndpoint = new MetricsHttpEndpoint(metrics, metricsHttpHost, metricsHttpPort);
+                metricsEndpoint.start();
+            }
+            if (stateFile != null) {
+                String pid = getPid();
+                serviceState = StateFile.open(stateFile, pid.length() > 0 ? Long.parseLong(pid) : 0,
+                        unixSocketPath == null ? port : 0, heartbeatInterval);
+            }
+            serviceListener.start();
+            if (configFile != null) {
+                configWatcher = new ConfigWatcher(this, configFile);
+                configWatcher.start();
             }
+            if (!waitForReadySignal) {
+                signalReady();
+            }
+            executionLock.lock();
+            try {
+                deployer.run(serviceArgs);
+            }
+            finally {
+                executionLock.unlock();
+            }
+            recordEvent(LifecycleJournal.EXIT, getUptime(), LifecycleJournal.OK, "service",
+                    relaunchRequested ? "restart" : "");
+            stopServiceThreads();
         }
-        else {
-            service.onServiceNotRunning();
+        catch (Exception e) {
+            recordEvent(LifecycleJournal.EXIT, getUptime(), LifecycleJournal.ERROR, "service", e.toString());
+            if (!bound) {
+                // only the control port or socket can be in use by another
+                // instance
+                service.onServiceAlreadyRunning();
+                return;
+            }
+            service.printErrorMessage("ERROR: the service failed: " + e);
+            e.printStackTrace();
+            stopServiceThreads();
+            return;
+        }
+        finally {
+            // if the service returned without being ready, it failed to start
+            ReadinessHandshake.signal(ReadinessHandshake.FAILED);
+            if (serviceState != null) {
+                serviceState.close();
+            }
+            if (outputCapture != null) {
+                outputCapture.uninstall();
+            }
+        }
+        if (relaunchRequested && System.getProperty(SUPERVISED_PROPERTY) != null) {
+            // the supervisor starts it again
+            System.exit(ServiceSupervisor.RESTART_EXIT_CODE);
+        }
+        if (relaunchRequested) {
+            relaunchService();
+        }
+        if (standbyProcess != null) {
+            standbyProcess.discard();
         }
     }
 
-    private void restartService() {
-        stopService();
+    /**
+     * Stops the threads started by runService() around the service.
+     */
+    private void stopServiceThreads() {
+        if (serviceListener != null) {
+            serviceListener.shutdown();
+            if (serviceListener.getState() == Thread.State.NEW) {
+                // failed before the listener started
+                serviceListener.close();
+            }
+        }
+        if (statusCache != null) {
+            statusCache.stop();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+        shutdownServiceExecutor();
+    }
+
+    /**
+     * Called by the serviceListener when a restart command is received by the
+     * running service, before the service is stopped.
+     * 
+     * With handoff restarts, the new process is started right now. Otherwise,
+     * it is started after this one stops listening.
+     * 
+     * @throws RuntimeException
+     *             if the new process could not be started. In this case, the
+     *             service keeps running.
+     */
+    void prepareRestart() {
+        if (!isHandoffEnabled()) {
+            relaunchRequested = true;
+            return;
+        }
+        boolean ready;
         try {
-            Thread.sleep(restartWaitTime);
+            ready = launchSuccessor(true);
         }
-        catch (InterruptedException e) {
-            e.printStackTrace();
+        catch (IOException e) {
+            throw new RuntimeException("could not start the new process: " + e.getMessage());
+        }
+        if (!ready) {
+            throw new RuntimeException("the new process did not start");
         }
-        startService();
     }
 
-    void showServiceStatus() {
-        if (isServiceRunning()) {
-            sendCommand(service.getStatusCommand());
+    /**
+     * Starts the process that replaces this one on restart: the standby
+     * process if it is available, or a new one.
+     */
+    private boolean launchSuccessor(boolean handoff) throws IOException {
+        if (standbyProcess != null && standbyProcess.isAvailable()) {
+            try {
+                if (standbyProcess.activate(handoff, serviceArgs)) {
+                    return true;
+                }
+                service.printErrorMessage("The standby process did not start, starting a new process");
+            }
+            catch (IOException e) {
+                service.printErrorMessage("Could not activate the standby process (" + e.getMessage()
+                        + "), starting a new process");
+            }
         }
-        else {
-            service.onServiceNotRunning();
+        return launchService(handoff);
+    }
+
+    /**
+     * Starts this service again in a new process, after this one stopped
+     * listening.
+     */
+    private void relaunchService() {
+        try {
+            serviceListener.join();
+            waitForRelease();
+            if (!launchSuccessor(false)) {
+                service.onServiceDidNotStarted();
+            }
+        }
+        catch (Exception e) {
+            service.printErrorMessage("ERROR: could not start the new process: " + e);
         }
     }
 
-    private boolean isServiceRunning() {
-        Socket socket = null;
-        PrintWriter out = null;
-        BufferedReader in = null;
+    /**
+     * Returns the status of the running service, from the status cache if
+     * enabled. Status requests with args other than '--fresh' always call
+     * Service.status().
+     */
+    String getStatus(String[] args) {
+        String status = getServiceStatus(args);
+        String supervisor = System.getProperty(SUPERVISED_PROPERTY);
+        if (supervisor != null) {
+            int separator = supervisor.indexOf(':');
+            status += ServiceListenerThread.LINE_SEPARATOR + "Supervisor: " + supervisor.substring(0, separator)
+                    + " restarts, last exit code " + supervisor.substring(separator + 1);
+        }
+        StateFile state = serviceState;
+        if (state != null && args.length == 0) {
+            state.setStatus(status);
+        }
+        return status;
+    }
 
-        String host = null;
+    /**
+     * Changes the lifecycle state written in the state file, if enabled.
+     */
+    void updateState(int state) {
+        StateFile current = serviceState;
+        if (current != null) {
+            current.setState(state);
+        }
+    }
 
-        boolean isRunning = false;
+    private String getServiceStatus(String[] args) {
+        if (statusCache == null) {
+            return deployer.getService().status(args);
+        }
+        boolean fresh = args.length > 0 && FRESH_STATUS_ARG.equals(args[0]);
+        if (fresh) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        if (args.length > 0) {
+            return deployer.getService().status(args);
+        }
+        return statusCache.get(fresh);
+    }
 
+    /**
+     * Waits until Service.start() returns after the stop command, up to
+     * stopTimeout, and then interrupts it.
+     * 
+     * @return the time taken by each phase.
+     * @throws RuntimeException
+     *             if the service didn't stop after the interrupt.
+     */
+    String drain() {
+        long start = System.currentTimeMillis();
         try {
-            socket = new Socket((String) host, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (deployer.awaitFinished(stopTimeout)) {
+                return "Drained in " + (System.currentTimeMillis() - start) + "ms";
+            }
+            long drained = System.currentTimeMillis() - start;
+            deployer.interrupt();
+            if (deployer.awaitFinished(stopInterruptTime)) {
+                return "Drain deadline passed after " + drained + "ms, stopped "
+                        + (System.currentTimeMillis() - start - drained) + "ms after interrupt";
+            }
+            throw new RuntimeException("the service did not stop: drained for " + drained
+                    + "ms, interrupted for " + (System.currentTimeMillis() - start - drained) + "ms");
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while waiting for the service to stop");
+        }
+    }
 
-            out.println(pingCommand);
-            out.println("");
+    /**
+     * Returns the process id of this JVM.
+     */
+    static String getPid() {
+        // "pid@hostname" in all known JVMs
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int separator = name.indexOf('@');
+        return separator > 0 ? name.substring(0, separator) : "";
+    }
 
-            String output = in.readLine();
-            if ("pong".equals(output)) {
-                isRunning = true;
+    /**
+     * Reloads the running service with the given args, or with the current
+     * ones if none is given. The given args are kept for later restarts.
+     */
+    String reload(String[] args) {
+        synchronized (shutdownLock) {
+            if (serviceListener.stopRequested) {
+                throw new RuntimeException("the service is stopping");
             }
+            String[] newArgs = args.length == 0 ? serviceArgs : args;
+            deployer.getService().reload(newArgs);
+            serviceArgs = newArgs;
+        }
+        if (statusCache != null) {
+            statusCache.invalidate();
+        }
+        return "The service reloaded";
+    }
 
-            while (output != null && !"".equals(output)) {
-                output = in.readLine();
+    /**
+     * Samples the thread stacks of the running service.
+     * 
+     * @param args
+     *            optionally, the number of seconds, 'all' (the default) or
+     *            'service' to sample only the thread running
+     *            Service.start(), and the sampling interval in milisseconds.
+     * @return the collapsed stacks, after a summary of the hottest frames and
+     *         thread states.
+     */
+    String profile(String[] args) {
+        long duration = DEFAULT_PROFILE_SECONDS * 1000L;
+        long interval = SamplingProfiler.DEFAULT_INTERVAL;
+        Thread thread = null;
+        try {
+            if (args.length > 0) {
+                duration = (long) (Double.parseDouble(args[0]) * 1000);
+            }
+            if (args.length > 2) {
+                interval = Long.parseLong(args[2]);
             }
+        }
+        catch (NumberFormatException e) {
+            throw new RuntimeException("invalid number: " + e.getMessage());
+        }
+        if (duration <= 0 || duration > maxProfileTime) {
+            throw new RuntimeException("the profile time must be more than 0 and at most " + maxProfileTime / 1000
+                    + " seconds");
+        }
+        interval = Math.max(interval, SamplingProfiler.MIN_INTERVAL);
+        if (args.length > 1 && "service".equals(args[1])) {
+            thread = deployer.getThread();
+            if (thread == null) {
+                throw new RuntimeException("the service is not running");
+            }
+        }
+        else if (args.length > 1 && !"all".equals(args[1])) {
+            throw new RuntimeException("unknown threads to profile: " + args[1] + " (use 'all' or 'service')");
+        }
+        if (!profiling.compareAndSet(false, true)) {
+            throw new RuntimeException("the service is already being profiled");
+        }
+        try {
+            return new SamplingProfiler().profile(duration, interval, thread);
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while profiling");
+        }
+        finally {
+            profiling.set(false);
+        }
+    }
 
-            out.close();
-            in.close();
-            socket.close();
+    /**
+     * Returns the journal of this process, or null if it is disabled.
+     */
+    synchronized LifecycleJournal getJournal() {
+        if (journal == null && journalDirectory != null) {
+            journal = new LifecycleJournal(new File(journalDirectory), maxJournalSegments);
         }
-        catch (Exception e) {
-            // ignore errors, they will be thrown if the service is not running
+        return journal;
+    }
+
+    /**
+     * Appends an event to the journal, if it is enabled.
+     * 
+     * @param duration
+     *            how long (in nanoseconds) the event took, or -1 if unknown.
+     */
+    void recordEvent(byte type, long duration, byte outcome, String client, String detail) {
+        LifecycleJournal current = getJournal();
+        if (current != null) {
+            current.record(type, duration, outcome, client, detail);
         }
-        return isRunning;
     }
 
-    private void sendCommand(String command) {
-        Socket socket = null;
-        PrintWriter out = null;
-        BufferedReader in = null;
+    /**
+     * Called before a start, stop or restart command is executed here.
+     * 
+     * @return the start time, for recordLifecycle().
+     */
+    private long beginLifecycle() {
+        lifecycleOutcome = LifecycleJournal.OK;
+        lifecycleDetail = joinArgs(serviceArgs);
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the start, stop or restart command executed here as failed.
+     */
+    private void lifecycleFailed(String detail) {
+        lifecycleOutcome = LifecycleJournal.ERROR;
+        lifecycleDetail = detail;
+    }
+
+    private void recordLifecycle(byte type, long start) {
+        recordEvent(type, System.nanoTime() - start, lifecycleOutcome, "cli:" + System.getProperty("user.name"),
+                lifecycleDetail);
+    }
+
+    /**
+     * How long (in nanoseconds) this JVM is running.
+     */
+    private static long getUptime() {
+        return TimeUnit.MILLISECONDS.toNanos(ManagementFactory.getRuntimeMXBean().getUptime());
+    }
 
-        String host = null;
+    private static String joinArgs(String[] args) {
+        StringBuilder joined = new StringBuilder();
+        for (String arg : args) {
+            if (joined.length() > 0) {
+                joined.append(' ');
+            }
+            joined.append(arg);
+        }
+        return joined.toString();
+    }
 
+    /**
+     * Lists the events recorded in the journal.
+     * 
+     * @param args
+     *            optionally, 'since=TIME' and 'until=TIME' (such as
+     *            2024-05-01, 2024-05-01T14:30 or 3h, 30m, 7d ago), 'type=' a
+     *            comma separated list of event types (start, stop, restart,
+     *            ready, exit, crash or command), and 'limit=' the number of
+     *            events listed.
+     * @return the last events, followed by a summary of each event type.
+     */
+    String history(String[] args) {
+        if (journalDirectory == null) {
+            throw new RuntimeException("the journal is not enabled");
+        }
+        long from = 0;
+        long to = Long.MAX_VALUE;
+        int types = -1;
+        int limit = DEFAULT_HISTORY_LIMIT;
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = separator < 0 ? arg : arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
+            if ("since".equals(name)) {
+                from = parseHistoryTime(value);
+            }
+            else if ("until".equals(name)) {
+                to = parseHistoryTime(value);
+            }
+            else if ("type".equals(name)) {
+                types = 0;
+                for (String typeName : value.split(",")) {
+                    int type = LifecycleJournal.getType(typeName);
+                    if (type < 1) {
+                        throw new RuntimeException("unknown event type: " + typeName);
+                    }
+                    types |= 1 << type;
+                }
+            }
+            else if ("limit".equals(name)) {
+                try {
+                    limit = Integer.parseInt(value);
+                }
+                catch (NumberFormatException e) {
+                    limit = 0;
+                }
+                if (limit < 1) {
+                    throw new RuntimeException("invalid limit: " + value);
+                }
+            }
+            else {
+                throw new RuntimeException("unknown argument: " + arg + " (use since=, until=, type= or limit=)");
+            }
+        }
         try {
-            socket = new Socket((String) host, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            return LifecycleJournal.format(LifecycleJournal.query(new File(journalDirectory), from, to, types),
+                    limit);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("could not read the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a time of the 'history' command: a local date, date and time,
+     * or a number of seconds, minutes, hours or days ago.
+     * 
+     * @return the time in nanoseconds since the epoch.
+     */
+    private static long parseHistoryTime(String value) {
+        if (value.matches("[0-9]+[smhd]")) {
+            long amount = Long.parseLong(value.substring(0, value.length() - 1));
+            TimeUnit unit = TimeUnit.SECONDS;
+            switch (value.charAt(value.length() - 1)) {
+            case 'm':
+                unit = TimeUnit.MINUTES;
+                break;
+            case 'h':
+                unit = TimeUnit.HOURS;
+                break;
+            case 'd':
+                unit = TimeUnit.DAYS;
+                break;
+            }
+            return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - unit.toMillis(amount));
+        }
+        String[] patterns = { "yyyy-MM-dd'T'HH:mm:ss", "yyyy-MM-dd'T'HH:mm", "yyyy-MM-dd" };
+        for (String pattern : patterns) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            if (date != null && position.getIndex() == value.length()) {
+                return TimeUnit.MILLISECONDS.toNanos(date.getTime());
+            }
+        }
+        throw new RuntimeException("invalid time: " + value);
+    }
 
-            out.println(command);
+    /**
+     * Prints the events recorded in the journal. Reads it directly if it is
+     * enabled here, so it also works while the service is stoped, or asks
+     * the running service otherwise.
+     */
+    void showHistory() {
+        if (journalDirectory == null) {
+            sendCommand(service.getHistoryCommand());
+            return;
+        }
+        try {
+            service.printMessage(history(serviceArgs));
+        }
+        catch (RuntimeException e) {
+            service.printErrorMessage("ERROR: " + e.getMessage());
+        }
+    }
 
-            for (int i = 0; i < serviceArgs.length; ++i) {
-                out.println(serviceArgs[i]);
+    /**
+     * Returns the last lines of output of the running service. The only
+     * optional arg is the number of lines.
+     */
+    String tail(String[] args) {
+        int count = DEFAULT_TAIL_COUNT;
+        if (args.length > 0) {
+            try {
+                count = Integer.parseInt(args[0]);
             }
-            out.println("");
+            catch (NumberFormatException e) {
+                throw new RuntimeException("invalid number of lines: " + args[0]);
+            }
+        }
+        return outputCapture.tail(count);
+    }
 
-            String output = in.readLine();
-            while (output != null && !"".equals(output)) {
-                service.printMessage(output);
-                output = in.readLine();
+    /**
+     * The classpath with relative entries resolved in the current working
+     * directory, for processes started in another one.
+     */
+    private String getAbsoluteClasspath() {
+        StringBuilder absolute = new StringBuilder();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (absolute.length() > 0) {
+                absolute.append(File.pathSeparator);
             }
+            absolute.append(entry.length() == 0 ? entry : new File(entry).getAbsolutePath());
+        }
+        return absolute.toString();
+    }
+
+    private static String getNullDevice() {
+        return System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null";
+    }
 
-            out.close();
-            in.close();
-            socket.close();
+    /**
+     * Tells the process that started this service that it is ready. Only
+     * needed if waitForReadySignal is true.
+     */
+    void signalReady() {
+        metrics.markReady();
+        updateState(StateFile.RUNNING);
+        ReadinessHandshake.signal(ReadinessHandshake.READY);
+        synchronized (this) {
+            if (!readyRecorded) {
+                readyRecorded = true;
+                recordEvent(LifecycleJournal.READY, getUptime(), LifecycleJournal.OK, "service",
+                        joinArgs(serviceArgs));
+            }
+            if (isStandbyEnabled() && standbyProcess == null) {
+                standbyProcess = new StandbyProcess(this);
+                standbyProcess.spawn();
+            }
         }
-        catch (UnknownHostException e) {
-            service.printErrorMessage("Don't know about host: " + host);
+    }
+
+    /**
+     * Sends the stop command to the running service.
+     */
+    void stopService() {
+        stopService(getTransport());
+    }
+
+    /**
+     * Sends the stop command through the given transport. The service only
+     * answers after it stopped, so the response is enough to know that it
+     * worked.
+     */
+    private void stopService(ControlTransport transport) {
+        ServiceConnection connection;
+        try {
+            connection = new ServiceConnection(transport);
         }
         catch (IOException e) {
+            lifecycleFailed("not running");
             service.onServiceNotRunning();
+            return;
+        }
+        String pid = null;
+        Timer deadline = null;
+        boolean stoped;
+        try {
+            if (stopTimeout > 0 && isLocal()) {
+                pid = getServicePid(connection);
+                deadline = closeAfter(connection, stopTimeout + stopInterruptTime + STOP_RESPONSE_MARGIN);
+            }
+            stoped = !printResult(connection.send(service.getStopCommand(), serviceArgs)).isError();
+        }
+        catch (IOException e) {
+            // the connection was lost (or closed by the deadline) before the
+            // response, check it again
+            stoped = ping(transport) == null;
+        }
+        finally {
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            close(connection);
+        }
+        if (!stoped && pid != null) {
+            stoped = killService(pid, transport);
+        }
+        if (stoped) {
+            service.onServiceStoped();
+        }
+        else {
+            lifecycleFailed("did not stop");
+            service.onServiceDidNotStoped();
         }
     }
 
-    public void setPort(int port) {
-        this.port = port;
+    private void restartService() {
+        if (isStandbyEnabled() && isServiceRunning()) {
+            standbyRestartService();
+            return;
+        }
+        if (isHandoffEnabled()) {
+            handoffRestartService();
+            return;
+        }
+        stopService();
+        // the outcome is the one of the start, that also fails if the service
+        // didn't stop
+        lifecycleOutcome = LifecycleJournal.OK;
+        waitForRelease();
+        startService();
     }
 
-    public int getPort() {
-        return this.port;
+    /**
+     * Starts a new process while the current service is still running, and
+     * stops the old one only after the new one is ready.
+     * 
+     * The old process is stopped through its own instance port (returned by
+     * the ping command), since the main port is shared by both processes.
+     */
+    private void handoffRestartService() {
+        List<String> pong = ping(getTransport());
+        if (pong == null || pong.size() < 2) {
+            // not running, or running without handoff support
+            stopService();
+            lifecycleOutcome = LifecycleJournal.OK;
+            waitForRelease();
+            startService();
+            return;
+        }
+        ControlTransport instance = new TcpControlTransport(null, Integer.parseInt(pong.get(1)));
+        try {
+            if (!launchService(true)) {
+                // the old service is still running
+                lifecycleFailed("did not start");
+                service.onServiceDidNotStarted();
+                return;
+            }
+        }
+        catch (IOException e) {
+            lifecycleFailed(e.toString());
+            e.printStackTrace();
+            return;
+        }
+        stopService(instance);
+        service.onServiceStarted();
+    }
+
+    /**
+     * Returns the process id of the running service, or null if it is not
+     * known (such as for services running older versions of this library).
+     */
+    private String getServicePid(ServiceConnection connection) throws IOException {
+        CommandResult result = connection.send(pidCommand);
+        String pid = result.getText().trim();
+        if (result.isError() || !pid.matches("[0-9]+")) {
+            return null;
+        }
+        return pid;
+    }
+
+    /**
+     * Closes the given connection after the given time (in milisseconds),
+     * unless the returned timer is canceled before.
+     */
+    private static Timer closeAfter(final ServiceConnection connection, long time) {
+        Timer timer = new Timer("ServiceStopDeadlineThread", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                close(connection);
+            }
+        }, time);
+        return timer;
+    }
+
+    /**
+     * Returns true if the service runs in this host, so its process can be
+     * killed from here.
+     */
+    private boolean isLocal() {
+        if (unixSocketPath != null || host == null) {
+            return true;
+        }
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Kills the process of a service that didn't stop in time, and waits
+     * until it released the port or socket file.
+     * 
+     * @return true if the process was killed.
+     */
+    private boolean killService(String pid, ControlTransport transport) {
+        long start = System.currentTimeMillis();
+        try {
+            killProcess(Long.parseLong(pid));
+        }
+        catch (Exception e) {
+            service.printErrorMessage("ERROR: could not kill the process " + pid + ": " + e.getMessage());
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + Math.max(restartWaitTime, STOP_RESPONSE_MARGIN);
+        while (ping(transport) != null && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(ServiceClient.RESTART_POLL_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+        service.printErrorMessage("The service did not stop in time, killed the process " + pid + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return ping(transport) == null;
+    }
+
+    /**
+     * Kills the process with the given id, using ProcessHandle (accessed by
+     * reflection, since it is only available since Java 9) or the kill
+     * command of the operating system.
+     */
+    private static void killProcess(long pid) throws Exception {
+        Class<?> processHandle;
+        try {
+            processHandle = Class.forName("java.lang.ProcessHandle");
+        }
+        catch (ClassNotFoundException e) {
+            processHandle = null;
+        }
+        if (processHandle != null) {
+            Object optional = processHandle.getMethod("of", long.class).invoke(null, pid);
+            Method isPresent = optional.getClass().getMethod("isPresent");
+            if ((Boolean) isPresent.invoke(optional)) {
+                Object handle = optional.getClass().getMethod("get").invoke(optional);
+                processHandle.getMethod("destroyForcibly").invoke(handle);
+            }
+            return;
+        }
+        String[] command;
+        if (System.getProperty("os.name").startsWith("Windows")) {
+            command = new String[] { "taskkill", "/F", "/PID", String.valueOf(pid) };
+        }
+        else {
+            command = new String[] { "kill", "-9", String.valueOf(pid) };
+        }
+        if (new ProcessBuilder(command).start().waitFor() != 0) {
+            throw new IOException(command[0] + " failed");
+        }
+    }
+
+    /**
+     * Sends the restart command to the running service, that replaces itself
+     * with its standby process, and waits until the service answers again.
+     */
+    private void standbyRestartService() {
+        ServiceConnection connection;
+        try {
+            connection = new ServiceConnection(getTransport());
+        }
+        catch (IOException e) {
+            startService();
+            return;
+        }
+        try {
+            CommandResult result = printResult(connection.send(service.getRestartCommand(), serviceArgs));
+            if (result.isError()) {
+                lifecycleFailed(result.toString());
+                return;
+            }
+        }
+        catch (IOException e) {
+            lifecycleFailed("connection closed");
+            service.printErrorMessage("ERROR: the service closed the connection before answering");
+            return;
+        }
+        finally {
+            close(connection);
+        }
+        long deadline = System.currentTimeMillis() + startTimeout;
+        while (!isServiceRunning()) {
+            if (System.currentTimeMillis() >= deadline) {
+                lifecycleFailed("did not start");
+                service.onServiceDidNotStarted();
+                return;
+            }
+            try {
+                Thread.sleep(ServiceClient.RESTART_POLL_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+        service.onServiceStarted();
+    }
+
+    private boolean isStandbyEnabled() {
+        return standby && !supervised;
+    }
+
+    private boolean isHandoffEnabled() {
+        return handoffRestart && !supervised && getTransport().supportsHandoff();
+    }
+
+    /**
+     * Returns the transport used to send commands to the running service: a
+     * Unix domain socket if unixSocketPath is set, or the TCP port.
+     */
+    ControlTransport getTransport() {
+        if (unixSocketPath != null) {
+            return new UnixControlTransport(unixSocketPath);
+        }
+        return new TcpControlTransport(host, port);
+    }
+
+    /**
+     * Waits until the port or socket file can be bound again, or
+     * restartWaitTime has passed.
+     */
+    private void waitForRelease() {
+        ControlTransport transport = getTransport();
+        long deadline = System.currentTimeMillis() + restartWaitTime;
+        while (System.currentTimeMillis() < deadline) {
+            if (transport.isReleased()) {
+                return;
+            }
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a command to many running services at the same time. The args
+     * are: [--parallel N] [--timeout ms] [--batch N]
+     * host:port[,host:port...] {status|stop|restart} [args...]
+     */
+    void controlFleet() {
+        String usage = "Usage: java " + mainClass + " " + service.getFleetCommand()
+                + " [--parallel N] [--timeout ms] [--batch N] host:port[,host:port...] {"
+                + service.getStatusCommand() + '|' + service.getStopCommand() + '|' + service.getRestartCommand()
+                + "} [args]";
+        ServiceFleet fleet;
+        int i = 0;
+        try {
+            int parallelism = 8;
+            long timeout = 30000;
+            int batchSize = 1;
+            for (; i < serviceArgs.length && serviceArgs[i].startsWith("--"); i += 2) {
+                int value = Integer.parseInt(serviceArgs[i + 1]);
+                if ("--parallel".equals(serviceArgs[i])) {
+                    parallelism = value;
+                }
+                else if ("--timeout".equals(serviceArgs[i])) {
+                    timeout = value;
+                }
+                else if ("--batch".equals(serviceArgs[i])) {
+                    batchSize = value;
+                }
+                else {
+                    throw new RuntimeException("unknown option " + serviceArgs[i]);
+                }
+            }
+            if (serviceArgs.length < i + 2) {
+                throw new RuntimeException("targets and command are required");
+            }
+            fleet = new ServiceFleet(ServiceFleet.parseTargets(serviceArgs[i]));
+            fleet.setParallelism(parallelism);
+            fleet.setTimeout(timeout);
+            fleet.setBatchSize(batchSize);
+            fleet.setCommandsOf(service);
+        }
+        catch (RuntimeException e) {
+            service.printErrorMessage("ERROR: " + e.getMessage());
+            service.printErrorMessage(usage);
+            return;
+        }
+        String command = serviceArgs[i + 1];
+        String[] args = Arrays.copyOfRange(serviceArgs, i + 2, serviceArgs.length);
+        FleetResult result;
+        if (service.getStatusCommand().equals(command)) {
+            result = fleet.status(args);
+        }
+        else if (service.getStopCommand().equals(command)) {
+            result = fleet.stop(args);
+        }
+        else if (service.getRestartCommand().equals(command)) {
+            result = fleet.restart(args);
+        }
+        else {
+            service.printErrorMessage(usage);
+            return;
+        }
+        for (ServiceEndpoint endpoint : result.getResults().keySet()) {
+            CommandResult commandResult = result.getResults().get(endpoint);
+            if (commandResult.getOutcome() == CommandResult.Outcome.OK) {
+                String text = commandResult.getText();
+                service.printMessage(endpoint + ": " + (text.length() == 0 ? "OK" : text));
+            }
+            else {
+                service.printErrorMessage(endpoint + ": " + commandResult);
+            }
+        }
+        for (ServiceEndpoint endpoint : result.getSkipped()) {
+            service.printErrorMessage(endpoint + ": skipped");
+        }
+        service.printMessage(result.getSummary());
+    }
+
+    /**
+     * Prints the status of the running service, and then each update sent by
+     * it, until the service stops or the user interrupts the command.
+     */
+    void watchService() {
+        ServiceConnection connection;
+        try {
+            connection = new ServiceConnection(getTransport());
+        }
+        catch (UnknownHostException e) {
+            service.printErrorMessage("Don't know about host: " + e.getMessage());
+            return;
+        }
+        catch (IOException e) {
+            service.onServiceNotRunning();
+            return;
+        }
+        try {
+            CommandResult result = printResult(connection.send(service.getWatchCommand(), serviceArgs));
+            while (!result.isError()) {
+                result = printResult(connection.receive());
+            }
+        }
+        catch (IOException e) {
+            // the service stoped
+        }
+        finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * Sends the current status to the clients of the 'watch' command, without
+     * blocking the caller.
+     */
+    void publishStatus() {
+        ServiceListenerThread listener = serviceListener;
+        if (listener != null) {
+            listener.publishStatus();
+        }
+    }
+
+    /**
+     * Returns the executor used by the service for its own blocking tasks.
+     */
+    synchronized ExecutorService getServiceExecutor() {
+        if (serviceExecutor == null) {
+            serviceExecutor = VirtualThreads.newExecutor("ServiceTask-");
+        }
+        return serviceExecutor;
+    }
+
+    private synchronized void shutdownServiceExecutor() {
+        if (serviceExecutor != null) {
+            serviceExecutor.shutdown();
+            serviceExecutor = null;
+        }
+    }
+
+    /**
+     * Computes the status without using the snapshot of the status cache,
+     * but updating it.
+     */
+    String getFreshStatus() {
+        if (statusCache == null) {
+            return getStatus(new String[0]);
+        }
+        return getStatus(new String[] { FRESH_STATUS_ARG });
+    }
+
+    void showServiceStatus() {
+        sendCommand(service.getStatusCommand());
+    }
+
+    private boolean isServiceRunning() {
+        if (stateFile != null && isLocal()) {
+            try {
+                StateFile state = StateFile.read(stateFile);
+                // only trusted if healthy, anything else is checked by a ping
+                if (state != null && state.isHealthy() && !Boolean.FALSE.equals(isProcessAlive(state.getPid()))) {
+                    return true;
+                }
+            }
+            catch (IOException e) {
+                // checked by the ping
+            }
+        }
+        return ping(getTransport()) != null;
+    }
+
+    /**
+     * Returns true if the process with the given id exists, using
+     * ProcessHandle (accessed by reflection, since it is only available since
+     * Java 9).
+     * 
+     * @return null if it can't be checked.
+     */
+    private static Boolean isProcessAlive(long pid) {
+        try {
+            Class<?> processHandle = Class.forName("java.lang.ProcessHandle");
+            Object optional = processHandle.getMethod("of", long.class).invoke(null, pid);
+            Method isPresent = optional.getClass().getMethod("isPresent");
+            if (!(Boolean) isPresent.invoke(optional)) {
+                return Boolean.FALSE;
+            }
+            Object handle = optional.getClass().getMethod("get").invoke(optional);
+            return (Boolean) processHandle.getMethod("isAlive").invoke(handle);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends the ping command through the given transport.
+     * 
+     * @return the response lines, starting with "pong" (or the busy error, if
+     *         the service was too busy to answer it), or null if no service
+     *         answered.
+     */
+    private List<String> ping(ControlTransport transport) {
+        try {
+            ServiceConnection connection = new ServiceConnection(transport);
+            try {
+                connection.setTimeout(PING_TIMEOUT);
+                CommandResult result = connection.send(pingCommand);
+                String[] lines = result.getLines();
+                // a busy service is running, only rate limited or saturated
+                if (!result.isError() && "pong".equals(lines[0]) || result.isBusy()) {
+                    return Arrays.asList(lines);
+                }
+            }
+            finally {
+                close(connection);
+            }
+        }
+        catch (Exception e) {
+            // ignore errors, they will be thrown if the service is not running
+        }
+        return null;
+    }
+
+    /**
+     * Sends the given command to the running service, printing its response.
+     * If no service answers, calls Service.onServiceNotRunning().
+     */
+    private void sendCommand(String command) {
+        ServiceConnection connection;
+        try {
+            connection = new ServiceConnection(getTransport());
+        }
+        catch (UnknownHostException e) {
+            service.printErrorMessage("Don't know about host: " + e.getMessage());
+            return;
+        }
+        catch (IOException e) {
+            service.onServiceNotRunning();
+            return;
+        }
+        try {
+            printResult(connection.send(command, serviceArgs));
+        }
+        catch (IOException e) {
+            service.printErrorMessage("ERROR: the service closed the connection before answering");
+        }
+        finally {
+            close(connection);
+        }
+    }
+
+    private CommandResult printResult(CommandResult result) {
+        if (result.isError()) {
+            service.printErrorMessage(result.toString());
+        }
+        else if (result.getText().length() > 0) {
+            service.printMessage(result.getText());
+        }
+        return result;
+    }
+
+    private static void close(ServiceConnection connection) {
+        try {
+            connection.close();
+        }
+        catch (IOException e) {
+            // nothing else to do with this connection
+        }
+    }
+
+    /**
+     * Opens a connection to the running service, that can be used to send
+     * many commands without opening a new connection for each one.
+     * 
+     * @return the connection. Must be closed after use.
+     * @throws IOException
+     *             if the service is not running.
+     */
+    public ServiceConnection connect() throws IOException {
+        return new ServiceConnection(getTransport());
+    }
+
+    /**
+     * Sets the TCP port used to send commands to the service. Also makes the
+     * controller use TCP again if a Unix domain socket was selected.
+     */
+    public void setPort(int port) {
+        this.port = port;
+        this.unixSocketPath = null;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    /**
+     * Sets the host where the service runs, so commands such as 'status' and
+     * 'stop' can control a service in another host. The service is always
+     * started and run in the local host.
+     * 
+     * @param host
+     *            the host name or address, or null for the local host.
+     */
+    public void setHost(String host) {
+        this.host = host;
+    }
+
+    public String getHost() {
+        return this.host;
+    }
+
+    /**
+     * Makes the controller use a Unix domain socket file instead of a TCP port
+     * to send commands to the service. The file is created in the temporary
+     * directory, and named after the service main class, so each service gets
+     * its own file without choosing a port. Requires Java 16 or later.
+     */
+    public void useUnixSocket() {
+        String tmpdir = System.getProperty("java.io.tmpdir");
+        setUnixSocketPath(new File(tmpdir, "jss-" + mainClass + ".sock").getPath());
+    }
+
+    /**
+     * Makes the controller use the Unix domain socket file in the given path
+     * to send commands to the service. Requires Java 16 or later.
+     * 
+     * @param unixSocketPath
+     *            the socket file path, or null to use the TCP port again.
+     */
+    public void setUnixSocketPath(String unixSocketPath) {
+        if (unixSocketPath != null && !UnixControlTransport.isSupported()) {
+            throw new RuntimeException("Unix domain sockets require Java 16 or later");
+        }
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    public String getUnixSocketPath() {
+        return this.unixSocketPath;
+    }
+
+    /**
+     * Returns the endpoint where the service listens for commands, to be used
+     * with a ServiceClient.
+     */
+    public ServiceEndpoint getEndpoint() {
+        if (unixSocketPath != null) {
+            return ServiceEndpoint.unixSocket(unixSocketPath);
+        }
+        return ServiceEndpoint.tcp(host, port);
+    }
+
+    /**
+     * Returns a description of where the service listens for commands, such
+     * as "port 6400", to be used in messages to the user.
+     */
+    public String getControlAddress() {
+        return getTransport().toString();
+    }
+
+    /**
+     * Creates a server socket listening on the given port, to be used by the
+     * service implementation. If handoff restarts are enabled, the socket is
+     * created with SO_REUSEPORT, so the new process started by a restart can
+     * listen on it before this one is stopped.
+     * 
+     * @param port
+     *            the port to listen on
+     * @return the bound server socket
+     */
+    public ServerSocket openServerSocket(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        if (handoffRestart && PortSharing.isSupported()) {
+            try {
+                PortSharing.enable(serverSocket);
+            }
+            catch (Exception e) {
+                throw new IOException("could not share the port " + port + ": " + e);
+            }
+        }
+        serverSocket.bind(new InetSocketAddress(port));
+        return serverSocket;
+    }
+
+    public void setHandoffRestart(boolean handoffRestart) {
+        this.handoffRestart = handoffRestart;
+    }
+
+    public boolean isHandoffRestart() {
+        return this.handoffRestart;
+    }
+
+    public void setRestartWaitTime(int restartWaitTime) {
+        this.restartWaitTime = restartWaitTime;
+    }
+
+    public int getRestartWaitTime() {
+        return this.restartWaitTime;
+    }
+
+    public void setStartTimeout(int startTimeout) {
+        this.startTimeout = startTimeout;
+    }
+
+    public int getStartTimeout() {
+        return this.startTimeout;
+    }
+
+    public void setWaitForReadySignal(boolean waitForReadySignal) {
+        this.waitForReadySignal = waitForReadySignal;
+    }
+
+    public boolean isWaitForReadySignal() {
+        return this.waitForReadySignal;
+    }
+
+    /**
+     * Bounds the time taken by the stop command: the running service has
+     * stopTimeout milisseconds to return from Service.start(). Then the thread
+     * running it is interrupted, and it has interruptTime milisseconds more.
+     * If it still doesn't stop (or doesn't answer at all), the process
+     * executing the stop command kills it, if it runs in the same host. The
+     * stop command reports the time taken by each phase.
+     * 
+     * Zero (the default) waits forever.
+     */
+    public void setStopTimeout(long stopTimeout, long interruptTime) {
+        if (stopTimeout < 0 || interruptTime < 0) {
+            throw new RuntimeException("stop timeouts must not be negative");
+        }
+        this.stopTimeout = stopTimeout;
+        this.stopInterruptTime = interruptTime;
+    }
+
+    public long getStopTimeout() {
+        return this.stopTimeout;
+    }
+
+    public long getStopInterruptTime() {
+        return this.stopInterruptTime;
+    }
+
+    /**
+     * Enables the 'redeploy' command, that makes the running service load a
+     * new version of its classes from a path given by the client. Only enable
+     * it if the control port or socket can't be reached by untrusted
+     * clients.
+     */
+    public void setRedeployEnabled(boolean redeployEnabled) {
+        this.redeployEnabled = redeployEnabled;
+    }
+
+    public boolean isRedeployEnabled() {
+        return this.redeployEnabled;
+    }
+
+    /**
+     * Sets the config file of the service. The running service watches it,
+     * and calls Service.reload() with the current args when it changes.
+     */
+    public void setConfigFile(String configFile) {
+        this.configFile = configFile;
+    }
+
+    public String getConfigFile() {
+        return this.configFile;
+    }
+
+    /**
+     * Sets the state file of the service. The running service keeps its
+     * process id, port, lifecycle state and a heartbeat in the file, and
+     * holds a lock on it while it runs. Commands such as 'start' then check
+     * if the service is running by reading the file, instead of connecting
+     * to it. Other programs can read it with StateFile.read().
+     * 
+     * Relative paths are resolved against the working directory of each
+     * process, so an absolute path must be used if the launch profile changes
+     * the working directory.
+     */
+    public void setStateFile(String stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    public String getStateFile() {
+        return this.stateFile;
+    }
+
+    /**
+     * Sets how often (in milisseconds) the running service updates the
+     * heartbeat in its state file. The service is considered unhealthy after
+     * three intervals without a heartbeat.
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        if (heartbeatInterval < 1) {
+            throw new RuntimeException("heartbeatInterval must be at least 1");
+        }
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
+    public long getHeartbeatInterval() {
+        return this.heartbeatInterval;
+    }
+
+    /**
+     * Sets the class with the main method that starts the service in a new
+     * process. Defaults to the service class.
+     */
+    public void setMainClass(String mainClass) {
+        this.mainClass = mainClass;
+    }
+
+    public String getMainClass() {
+        return this.mainClass;
+    }
+
+    /**
+     * Sets the JVM options, environment, working directory and AppCDS use of
+     * the service processes started by this controller.
+     */
+    public void setLaunchProfile(LaunchProfile launchProfile) {
+        if (launchProfile == null) {
+            throw new RuntimeException("launchProfile must not be null");
+        }
+        this.launchProfile = launchProfile;
+    }
+
+    public LaunchProfile getLaunchProfile() {
+        return this.launchProfile;
+    }
+
+    /**
+     * Makes the running service keep a standby process: a spare JVM, already
+     * booted, that takes its place on restart, so the restart doesn't wait
+     * for the JVM boot and class loading. Must be set in both the running
+     * service and the process executing the restart command (usually in the
+     * main method). Ignored for supervised services.
+     */
+    public void setStandby(boolean standby) {
+        this.standby = standby;
+    }
+
+    public boolean isStandby() {
+        return this.standby;
+    }
+
+    /**
+     * Makes the start command run the service under a supervisor process,
+     * that starts it again (right away, or with an exponential backoff if it
+     * keeps crashing) when it exits with a code other than zero or stops
+     * answering pings. The status command reports the number of restarts.
+     */
+    public void setSupervised(boolean supervised) {
+        this.supervised = supervised;
+    }
+
+    public boolean isSupervised() {
+        return this.supervised;
+    }
+
+    /**
+     * Sets how often (in milisseconds) the supervisor pings the service, and
+     * how many pings in a row without response make it kill the service.
+     * Defaults to 5 seconds and 3 pings.
+     */
+    public void setSupervisorPing(long interval, int failures) {
+        if (interval <= 0 || failures <= 0) {
+            throw new RuntimeException("the supervisor ping interval and failures must be positive");
+        }
+        this.supervisorPingInterval = interval;
+        this.supervisorPingTimeout = interval;
+        this.supervisorPingFailures = failures;
+    }
+
+    public long getSupervisorPingInterval() {
+        return this.supervisorPingInterval;
+    }
+
+    public int getSupervisorPingFailures() {
+        return this.supervisorPingFailures;
+    }
+
+    /**
+     * Sets the minimum time (in milisseconds) that the service must run to
+     * not be considered in a crash loop. Defaults to 10 seconds.
+     */
+    public void setMinUptime(long minUptime) {
+        this.minUptime = minUptime;
+    }
+
+    public long getMinUptime() {
+        return this.minUptime;
+    }
+
+    /**
+     * Sets the maximum delay (in milisseconds) before restarting a service in
+     * a crash loop. Defaults to 60 seconds.
+     */
+    public void setMaxRestartDelay(long maxRestartDelay) {
+        this.maxRestartDelay = maxRestartDelay;
+    }
+
+    public long getMaxRestartDelay() {
+        return this.maxRestartDelay;
+    }
+
+    /**
+     * Sets the number of crashes in a row, each one before minUptime, that
+     * make the supervisor give up. Zero (never give up) is also accepted.
+     * Defaults to 10.
+     */
+    public void setMaxCrashLoopRestarts(int maxCrashLoopRestarts) {
+        this.maxCrashLoopRestarts = maxCrashLoopRestarts;
+    }
+
+    public int getMaxCrashLoopRestarts() {
+        return this.maxCrashLoopRestarts;
+    }
+
+    /**
+     * Sets the file where the output (System.out and System.err) of the
+     * service is written when it is started in a new process. The file is
+     * written by a background thread, and rotated when it reaches
+     * logMaxSize bytes. If null (the default), the output is only kept in
+     * memory for the 'tail' command.
+     * 
+     * The output that is not written through System.out or System.err, such
+     * as JVM crash messages, is appended to a file with the same name plus
+     * ".out", that is never rotated.
+     */
+    public void setLogFile(String logFile) {
+        this.logFile = logFile;
+    }
+
+    public String getLogFile() {
+        return this.logFile;
+    }
+
+    /**
+     * Sets the size (in bytes) that makes the log file to be rotated.
+     * Defaults to 10MB.
+     */
+    public void setLogMaxSize(long logMaxSize) {
+        if (logMaxSize <= 0) {
+            throw new RuntimeException("logMaxSize must be positive");
+        }
+        this.logMaxSize = logMaxSize;
+    }
+
+    public long getLogMaxSize() {
+        return this.logMaxSize;
+    }
+
+    /**
+     * Sets the number of rotated log files kept besides the log file.
+     * Defaults to 5.
+     */
+    public void setLogMaxFiles(int logMaxFiles) {
+        if (logMaxFiles < 0) {
+            throw new RuntimeException("logMaxFiles must not be negative");
+        }
+        this.logMaxFiles = logMaxFiles;
+    }
+
+    public int getLogMaxFiles() {
+        return this.logMaxFiles;
+    }
+
+    /**
+     * Sets the number of output lines kept in memory by the running service,
+     * for the 'tail' command. Defaults to 1000.
+     */
+    public void setTailLines(int tailLines) {
+        if (tailLines <= 0) {
+            throw new RuntimeException("tailLines must be positive");
+        }
+        this.tailLines = tailLines;
+    }
+
+    public int getTailLines() {
+        return this.tailLines;
+    }
+
+    /**
+     * Enables the status cache of the running service: Service.status() is
+     * called in background every statusCacheTtl milisseconds, and status
+     * requests are answered with the last result. Use 'status --fresh' to
+     * skip the cache. Zero (the default) disables the cache.
+     */
+    public void setStatusCacheTtl(long statusCacheTtl) {
+        this.statusCacheTtl = statusCacheTtl;
+    }
+
+    public long getStatusCacheTtl() {
+        return this.statusCacheTtl;
+    }
+
+    /**
+     * Makes the running service answer HTTP GET requests for /metrics in the
+     * given port, with the same output of the 'metrics' command. Zero (the
+     * default) disables it. Only local clients can connect to it, unless
+     * another address is set with setMetricsHttpHost().
+     */
+    public void setMetricsHttpPort(int metricsHttpPort) {
+        this.metricsHttpPort = metricsHttpPort;
+    }
+
+    public int getMetricsHttpPort() {
+        return this.metricsHttpPort;
+    }
+
+    /**
+     * Sets the address where the metrics HTTP endpoint listens, such as
+     * "0.0.0.0" to accept Prometheus servers in other hosts.
+     * 
+     * @param metricsHttpHost
+     *            the host name or address, or null (the default) for the
+     *            loopback address.
+     */
+    public void setMetricsHttpHost(String metricsHttpHost) {
+        this.metricsHttpHost = metricsHttpHost;
+    }
+
+    public String getMetricsHttpHost() {
+        return this.metricsHttpHost;
+    }
+
+    /**
+     * If true, each command received by the running service is executed in a
+     * new virtual thread, so slow commands never wait for a free worker
+     * thread, and the commandWorkerThreads and maxPendingCommands limits are
+     * not used. Needs Java 21 or newer; in older JVMs, commands run in the
+     * pool of commandWorkerThreads as if this was false.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    public void setCommandWorkerThreads(int commandWorkerThreads) {
+        if (commandWorkerThreads < 1) {
+            throw new RuntimeException("commandWorkerThreads must be at least 1");
+        }
+        this.commandWorkerThreads = commandWorkerThreads;
+    }
+
+    public int getCommandWorkerThreads() {
+        return this.commandWorkerThreads;
+    }
+
+    public void setMaxPendingCommands(int maxPendingCommands) {
+        if (maxPendingCommands < 1) {
+            throw new RuntimeException("maxPendingCommands must be at least 1");
+        }
+        this.maxPendingCommands = maxPendingCommands;
+    }
+
+    public int getMaxPendingCommands() {
+        return this.maxPendingCommands;
+    }
+
+    /**
+     * Enables the lifecycle journal, kept in the given directory: every
+     * start, stop, restart, crash and command of the service is recorded
+     * there, and listed by the 'history' command.
+     * 
+     * Relative paths are resolved against the working directory of each
+     * process, so an absolute path must be used if the launch profile changes
+     * the working directory.
+     */
+    public void setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public String getJournalDirectory() {
+        return this.journalDirectory;
+    }
+
+    /**
+     * Sets how many segment files (of about 1MB, 8192 events each) of the
+     * journal are kept. The oldest ones are deleted first.
+     */
+    public void setMaxJournalSegments(int maxJournalSegments) {
+        if (maxJournalSegments < 1) {
+            throw new RuntimeException("maxJournalSegments must be at least 1");
+        }
+        this.maxJournalSegments = maxJournalSegments;
+    }
+
+    public int getMaxJournalSegments() {
+        return this.maxJournalSegments;
+    }
+
+    /**
+     * Sets the longest time (in milisseconds) the 'profile' command may
+     * sample the running service.
+     */
+    public void setMaxProfileTime(long maxProfileTime) {
+        if (maxProfileTime < 1) {
+            throw new RuntimeException("maxProfileTime must be at least 1");
+        }
+        this.maxProfileTime = maxProfileTime;
+    }
+
+    public long getMaxProfileTime() {
+        return this.maxProfileTime;
+    }
+
+    /**
+     * Sets how many control connections may be open at the same time. Further
+     * connections are answered with a busy error and closed. 0 (the default)
+     * means no limit.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 0) {
+            throw new RuntimeException("maxConnections must not be negative");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    /**
+     * Limits how many commands each client (by its address) may send to the
+     * running service. Commands above the limit are answered with a busy
+     * error. The stop and restart commands are never limited this way.
+     * 
+     * @param rate
+     *            the commands per second allowed on average, or 0 (the
+     *            default) for no limit.
+     * @param burst
+     *            how many commands may be sent at once, after the client was
+     *            idle for a while.
+     */
+    public void setClientRateLimit(double rate, int burst) {
+        if (rate < 0 || rate > 0 && burst < 1) {
+            throw new RuntimeException("invalid client rate limit: " + rate + "/s, burst " + burst);
+        }
+        this.clientRate = rate;
+        this.clientBurst = burst;
+    }
+
+    public double getClientRate() {
+        return this.clientRate;
+    }
+
+    public double getClientBurst() {
+        return this.clientBurst;
+    }
+
+    /**
+     * Limits how many times per second the given command may be executed by
+     * the running service, counting all clients. Commands above the limit
+     * are answered with a busy error.
+     * 
+     * @param rate
+     *            the commands per second allowed on average, or 0 to remove
+     *            the limit.
+     * @param burst
+     *            how many commands may be executed at once, after a while
+     *            without any.
+     */
+    public void setCommandRateLimit(String command, double rate, int burst) {
+        if (rate == 0) {
+            commandRateLimits.remove(command);
+            return;
+        }
+        if (rate < 0 || burst < 1) {
+            throw new RuntimeException("invalid rate limit of " + command + ": " + rate + "/s, burst " + burst);
+        }
+        commandRateLimits.put(command, new double[] { rate, burst });
+    }
+
+    /**
+     * Sets how many clients may follow the service with the 'watch' command
+     * at the same time. Further clients get an error.
+     */
+    public void setMaxWatchers(int maxWatchers) {
+        if (maxWatchers < 0) {
+            throw new RuntimeException("maxWatchers must not be negative");
+        }
+        this.maxWatchers = maxWatchers;
+    }
+
+    public int getMaxWatchers() {
+        return this.maxWatchers;
     }
 }
@@ -0,0 +1,311 @@
+package com.leonardofischer.jss;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the service instance that is deployed in the running JVM, and
+ * replaces it by a new version on the 'redeploy' command.
+ *
+ * The new version is loaded from the given classpath by a new class loader,
+ * that loads the service classes itself (instead of asking the application
+ * class loader first), but shares this library and the JDK with the running
+ * code. The old instance is stopped, the new one is started in the same
+ * thread (the one that called parseArgs()), and the class loader of the old
+ * version is closed so it can be garbage collected.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceDeployer {
+
+    /**
+     * The package of this library, that is always loaded by the application
+     * class loader, so the new version extends the same Service class.
+     */
+    static final String LIBRARY_PACKAGE = Service.class.getPackage().getName() + ".";
+
+    /**
+     * How long (in milisseconds) a redeploy waits for the old version to
+     * return from Service.start(), if the controller has no stopTimeout.
+     */
+    static final long DEFAULT_REDEPLOY_TIMEOUT = 30000;
+
+    private ServiceController controller;
+
+    private volatile Service deployed;
+
+    private Service next = null;
+
+    private boolean finished = false;
+
+    /**
+     * Released when finished is set. Used by the stop command instead of
+     * waiting on this monitor, that would pin a virtual thread.
+     */
+    private CountDownLatch finishedSignal = new CountDownLatch(1);
+
+    private boolean stopping = false;
+
+    private Thread runner = null;
+
+    ServiceDeployer(ServiceController controller, Service service) {
+        this.controller = controller;
+        this.deployed = service;
+    }
+
+    /**
+     * The service instance that is running now.
+     */
+    Service getService() {
+        return deployed;
+    }
+
+    /**
+     * The thread running Service.start(), or null if the service is not
+     * running.
+     */
+    synchronized Thread getThread() {
+        return finished ? null : runner;
+    }
+
+    /**
+     * Runs the deployed service until it stops without being replaced by a
+     * redeploy. Returns at once if the stop command arrived before, since the
+     * listener already accepts commands when this is called.
+     */
+    void run(String[] args) {
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        synchronized (this) {
+            if (stopping) {
+                finished = true;
+                finishedSignal.countDown();
+                notifyAll();
+                return;
+            }
+            runner = Thread.currentThread();
+        }
+        try {
+            while (true) {
+                deployed.start(args);
+                synchronized (this) {
+                    if (next == null) {
+                        finished = true;
+                        finishedSignal.countDown();
+                        notifyAll();
+                        return;
+                    }
+                    deployed = next;
+                    next = null;
+                    notifyAll();
+                }
+                Thread.currentThread().setContextClassLoader(deployed.getClass().getClassLoader());
+            }
+        }
+        finally {
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    /**
+     * Waits until the service stops without being replaced, or the timeout
+     * (in milisseconds) expires.
+     * 
+     * @return true if the service stopped.
+     */
+    boolean awaitFinished(long timeout) throws InterruptedException {
+        return finishedSignal.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the running service. A new version that was waiting for the old
+     * one to return is discarded, so the service really stops. If the service
+     * was not started yet, it never is.
+     */
+    void stop(String[] args) {
+        Service service;
+        synchronized (this) {
+            stopping = true;
+            discardNext();
+            if (runner == null) {
+                return;
+            }
+            service = deployed;
+        }
+        service.stop(args);
+    }
+
+    private void discardNext() {
+        if (next != null) {
+            if (next.getClass().getClassLoader() instanceof DeploymentClassLoader) {
+                close((DeploymentClassLoader) next.getClass().getClassLoader());
+            }
+            next = null;
+        }
+    }
+
+    /**
+     * Interrupts the thread running the service.
+     */
+    synchronized void interrupt() {
+        if (runner != null && !finished) {
+            runner.interrupt();
+        }
+    }
+
+    /**
+     * Replaces the running service by a new version.
+     *
+     * @param args
+     *            the classpath of the new version, optionally followed by the
+     *            name of the service class (if it changed).
+     * @return a message telling how long the redeploy took.
+     * @throws RuntimeException
+     *             if the new version can't be loaded (the running version
+     *             keeps running in this case), or if the old version didn't
+     *             return from Service.start() in time (the new version is
+     *             discarded, and the service stops when the old one
+     *             returns).
+     */
+    String redeploy(String[] args) {
+        if (args.length == 0) {
+            throw new RuntimeException("the classpath of the new version is missing");
+        }
+        long start = System.nanoTime();
+        Service old = deployed;
+        String className = args.length > 1 ? args[1] : old.getClass().getName();
+        DeploymentClassLoader loader = new DeploymentClassLoader(toUrls(args[0]), Service.class.getClassLoader());
+        Service service;
+        try {
+            Class<?> serviceClass = Class.forName(className, true, loader);
+            service = (Service) serviceClass.getConstructor().newInstance();
+        }
+        catch (Throwable e) {
+            close(loader);
+            throw new RuntimeException("could not load " + className + ": " + e);
+        }
+        // the new version talks to the running controller (its listener,
+        // metrics and executor), not to the one created by its constructor
+        service.serviceController = controller;
+
+        synchronized (this) {
+            if (finished || stopping) {
+                close(loader);
+                throw new RuntimeException("the service is not running");
+            }
+            if (next != null) {
+                close(loader);
+                throw new RuntimeException("another redeploy is running");
+            }
+            next = service;
+        }
+        old.stop(new String[0]);
+        long timeout = controller.stopTimeout > 0 ? controller.stopTimeout : DEFAULT_REDEPLOY_TIMEOUT;
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (deployed == old && !finished) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    if (next == service) {
+                        discardNext();
+                    }
+                    throw new RuntimeException("the old version did not stop in " + timeout
+                            + "ms, the new version was discarded");
+                }
+                try {
+                    wait(remaining);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (deployed != service) {
+                if (next == service) {
+                    discardNext();
+                }
+                throw new RuntimeException("the service stoped before the new version started");
+            }
+        }
+        if (old.getClass().getClassLoader() instanceof DeploymentClassLoader) {
+            close((DeploymentClassLoader) old.getClass().getClassLoader());
+        }
+        if (controller.statusCache != null) {
+            controller.statusCache.invalidate();
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        return "Redeployed " + className + " in " + millis + "ms";
+    }
+
+    private static URL[] toUrls(String classpath) {
+        List<URL> urls = new ArrayList<URL>();
+        for (String entry : classpath.split(File.pathSeparator)) {
+            if (entry.length() == 0) {
+                continue;
+            }
+            try {
+                urls.add(new File(entry).toURI().toURL());
+            }
+            catch (MalformedURLException e) {
+                throw new RuntimeException("invalid classpath entry: " + entry);
+            }
+        }
+        return urls.toArray(new URL[urls.size()]);
+    }
+
+    private static void close(URLClassLoader loader) {
+        try {
+            loader.close();
+        }
+        catch (IOException e) {
+            // the loader is garbage collected anyway
+        }
+    }
+
+    /**
+     * Loads the service classes from its own classpath first. Only the
+     * classes of this library (not its subpackages) and the ones that are not
+     * in the new classpath come from the parent.
+     */
+    static class DeploymentClassLoader extends URLClassLoader {
+
+        DeploymentClassLoader(URL[] urls, ClassLoader parent) {
+            super(urls, parent);
+        }
+
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null && !isShared(name)) {
+                    try {
+                        loaded = findClass(name);
+                    }
+                    catch (ClassNotFoundException e) {
+                        // not in the new classpath
+                    }
+                }
+                if (loaded == null) {
+                    return super.loadClass(name, resolve);
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+
+        private static boolean isShared(String name) {
+            if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.")) {
+                return true;
+            }
+            return name.startsWith(LIBRARY_PACKAGE) && name.indexOf('.', LIBRARY_PACKAGE.length()) < 0;
+        }
+    }
+}
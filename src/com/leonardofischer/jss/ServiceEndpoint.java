@@ -0,0 +1,88 @@
+package com.leonardofischer.jss;
+
+/**
+ * The address where a running service listens for commands: a TCP host and
+ * port, or a Unix domain socket file.
+ * 
+ * @author Leonardo Garcia Fischer
+ * 
+ */
+public class ServiceEndpoint {
+
+    private String host;
+
+    private int port;
+
+    private String unixSocketPath;
+
+    private ServiceEndpoint(String host, int port, String unixSocketPath) {
+        this.host = host;
+        this.port = port;
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    /**
+     * Creates an endpoint for a service listening on the given TCP port.
+     * 
+     * @param host
+     *            the host name or address, or null for the loopback address.
+     * @param port
+     *            the port given to ServiceController.setPort()
+     */
+    public static ServiceEndpoint tcp(String host, int port) {
+        return new ServiceEndpoint(host, port, null);
+    }
+
+    /**
+     * Creates an endpoint for a service listening on the given Unix domain
+     * socket file (on the local host). Requires Java 16 or later.
+     */
+    public static ServiceEndpoint unixSocket(String path) {
+        if (!UnixControlTransport.isSupported()) {
+            throw new RuntimeException("Unix domain sockets require Java 16 or later");
+        }
+        return new ServiceEndpoint(null, -1, path);
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUnixSocketPath() {
+        return unixSocketPath;
+    }
+
+    ControlTransport createTransport(int connectTimeout) {
+        if (unixSocketPath != null) {
+            return new UnixControlTransport(unixSocketPath);
+        }
+        TcpControlTransport transport = new TcpControlTransport(host, port);
+        transport.connectTimeout = connectTimeout;
+        return transport;
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof ServiceEndpoint)) {
+            return false;
+        }
+        return toString().equals(other.toString());
+    }
+
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * Returns "host:port", or the socket file path.
+     */
+    public String toString() {
+        if (unixSocketPath != null) {
+            return unixSocketPath;
+        }
+        return (host == null ? "localhost" : host) + ":" + port;
+    }
+}
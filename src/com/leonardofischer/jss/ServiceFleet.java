@@ -0,0 +1,220 @@
+package com.leonardofischer.jss;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Sends the same command to many running services (such as the same service
+ * running in many hosts) at the same time, and collects the results.
+ * 
+ * @author Leonardo Garcia Fischer
+ * 
+ */
+public class ServiceFleet {
+
+    private List<ServiceEndpoint> endpoints;
+
+    private int parallelism = 8;
+
+    private long timeout = 30000;
+
+    private int batchSize = 1;
+
+    private Service commandsOf = null;
+
+    /**
+     * Creates a fleet with the given targets.
+     */
+    public ServiceFleet(List<ServiceEndpoint> endpoints) {
+        if (endpoints == null || endpoints.isEmpty()) {
+            throw new RuntimeException("at least one target is needed");
+        }
+        this.endpoints = new ArrayList<ServiceEndpoint>(endpoints);
+    }
+
+    /**
+     * Parses a comma separated list of targets, such as
+     * "host1:6400,host2:6400,[::1]:6400".
+     * 
+     * @throws RuntimeException
+     *             if a target has no port
+     */
+    public static List<ServiceEndpoint> parseTargets(String targets) {
+        List<ServiceEndpoint> endpoints = new ArrayList<ServiceEndpoint>();
+        for (String target : targets.split(",")) {
+            target = target.trim();
+            if (target.length() == 0) {
+                continue;
+            }
+            int separator = target.lastIndexOf(':');
+            if (separator < 0) {
+                throw new RuntimeException("the target '" + target + "' must be in the host:port format");
+            }
+            String host = target.substring(0, separator);
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            int port;
+            try {
+                port = Integer.parseInt(target.substring(separator + 1));
+            }
+            catch (NumberFormatException e) {
+                throw new RuntimeException("the target '" + target + "' has an invalid port");
+            }
+            endpoints.add(ServiceEndpoint.tcp(host.length() == 0 ? null : host, port));
+        }
+        return endpoints;
+    }
+
+    /**
+     * Gets the status of all targets.
+     */
+    public FleetResult status(String... args) {
+        return sendToAll(commandsOf == null ? "status" : commandsOf.getStatusCommand(), args);
+    }
+
+    /**
+     * Stops all targets.
+     */
+    public FleetResult stop(String... args) {
+        return sendToAll(commandsOf == null ? "stop" : commandsOf.getStopCommand(), args);
+    }
+
+    /**
+     * Restarts the targets in batches of batchSize targets. Each batch is only
+     * restarted after the previous one is running again. If a target of a
+     * batch fails to restart, the next batches are skipped, so a broken
+     * release doesn't take the whole fleet down.
+     */
+    public FleetResult restart(String... args) {
+        long start = System.currentTimeMillis();
+        FleetResult fleetResult = new FleetResult();
+        ServiceClient client = createClient();
+        try {
+            String command = commandsOf == null ? "restart" : commandsOf.getRestartCommand();
+            boolean failed = false;
+            for (int first = 0; first < endpoints.size(); first += batchSize) {
+                List<ServiceEndpoint> batch = endpoints.subList(first, Math.min(first + batchSize, endpoints.size()));
+                if (failed) {
+                    for (ServiceEndpoint endpoint : batch) {
+                        fleetResult.skip(endpoint);
+                    }
+                    continue;
+                }
+                send(client, batch, command, args, fleetResult);
+                for (ServiceEndpoint endpoint : batch) {
+                    failed |= fleetResult.getResults().get(endpoint).getOutcome() != CommandResult.Outcome.OK;
+                }
+            }
+        }
+        finally {
+            client.close();
+        }
+        fleetResult.setDuration(System.currentTimeMillis() - start);
+        return fleetResult;
+    }
+
+    /**
+     * Sends any command to all targets.
+     */
+    public FleetResult sendToAll(String command, String... args) {
+        long start = System.currentTimeMillis();
+        FleetResult fleetResult = new FleetResult();
+        ServiceClient client = createClient();
+        try {
+            send(client, endpoints, command, args, fleetResult);
+        }
+        finally {
+            client.close();
+        }
+        fleetResult.setDuration(System.currentTimeMillis() - start);
+        return fleetResult;
+    }
+
+    private void send(ServiceClient client, List<ServiceEndpoint> targets, String command, String[] args,
+            FleetResult fleetResult) {
+        List<CompletableFuture<CommandResult>> futures = new ArrayList<CompletableFuture<CommandResult>>();
+        for (ServiceEndpoint endpoint : targets) {
+            futures.add(client.send(endpoint, command, args));
+        }
+        for (int i = 0; i < targets.size(); ++i) {
+            CommandResult result;
+            try {
+                result = futures.get(i).get();
+            }
+            catch (ExecutionException e) {
+                result = new CommandResult(String.valueOf(e.getCause()), true);
+            }
+            catch (InterruptedException e) {
+                result = new CommandResult("interrupted", true);
+            }
+            fleetResult.add(targets.get(i), result);
+        }
+    }
+
+    private ServiceClient createClient() {
+        ServiceClient client = new ServiceClient(parallelism);
+        client.setTimeout(timeout);
+        if (commandsOf != null) {
+            client.setCommandsOf(commandsOf);
+        }
+        return client;
+    }
+
+    public List<ServiceEndpoint> getEndpoints() {
+        return new ArrayList<ServiceEndpoint>(endpoints);
+    }
+
+    /**
+     * Sets how many targets receive a command at the same time. Defaults to
+     * 8.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new RuntimeException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the maximum time (in milisseconds) that each target may take to
+     * execute a command. For restarts, this includes the time until the new
+     * process is running. Defaults to 30 seconds.
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how many targets are restarted at the same time by restart().
+     * Defaults to 1.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new RuntimeException("batchSize must be at least 1");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Uses the same command names as the given service, in case they were
+     * customized with Service.setStatusCommand() and others.
+     */
+    public void setCommandsOf(Service service) {
+        this.commandsOf = service;
+    }
+}
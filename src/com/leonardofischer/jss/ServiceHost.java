@@ -0,0 +1,259 @@
+package com.leonardofischer.jss;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A service that runs many other services in the same JVM, behind a single
+ * control port. Each hosted service runs in its own thread, so one of them
+ * crashing (throwing from its start method) doesn't stop the others.
+ *
+ * Commands followed by the name of a hosted service are handled only by that
+ * service, such as 'status billing' or 'stop clock'. Without a name, they are
+ * handled by the host: 'stop' stops all the hosted services and the JVM, and
+ * 'status' lists the state of each service. If the host is not running,
+ * 'start billing clock' starts it with only the given services.
+ *
+ * <pre>
+ * public static void main(String[] args) {
+ *     ServiceHost host = new ServiceHost(MyServices.class);
+ *     host.addService("billing", new BillingService());
+ *     host.addService("clock", new ClockService());
+ *     host.parseArgs(args);
+ * }
+ * </pre>
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class ServiceHost extends Service {
+
+    private Map<String, HostedService> services = new LinkedHashMap<String, HostedService>();
+
+    private boolean running = false;
+
+    /**
+     * Creates a host.
+     *
+     * @param mainClass
+     *            the class with the main method that creates the host and
+     *            calls parseArgs(), used to start it in new processes.
+     */
+    public ServiceHost(Class<?> mainClass) {
+        if (mainClass == null) {
+            throw new RuntimeException("the main class of the host is required");
+        }
+        serviceController.mainClass = mainClass.getName();
+    }
+
+    /**
+     * Adds a service to this host. Must be called before parseArgs().
+     *
+     * The service is bound to the controller of the host: its status updates,
+     * metrics and executor are the ones of the host, and calling its ready()
+     * method tells that the host is ready.
+     *
+     * @param name
+     *            the name used to send commands to the service. Must not be
+     *            the name of another service.
+     */
+    public synchronized void addService(String name, Service service) {
+        if (name == null || name.length() == 0 || name.indexOf(' ') >= 0) {
+            throw new RuntimeException("invalid service name: " + name);
+        }
+        if (services.containsKey(name)) {
+            throw new RuntimeException("the service " + name + " was already added");
+        }
+        // the hosted service talks to the running controller (its listener,
+        // metrics and executor), not to the one created by its constructor
+        service.serviceController = serviceController;
+        services.put(name, new HostedService(name, service));
+    }
+
+    /**
+     * Returns true if a service with the given name was added to this host.
+     */
+    public synchronized boolean hasService(String name) {
+        return services.containsKey(name);
+    }
+
+    /**
+     * Starts the hosted services given as args (or all of them, if none is
+     * given), and waits until the host is stopped.
+     */
+    public void start(String[] args) {
+        synchronized (this) {
+            running = true;
+            for (HostedService hosted : services.values()) {
+                if (args.length == 0 || Arrays.asList(args).contains(hosted.name)) {
+                    hosted.start(new String[0]);
+                }
+            }
+            while (running) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        for (HostedService hosted : services.values()) {
+            if (hosted.isRunning()) {
+                hosted.stop(new String[0]);
+            }
+        }
+    }
+
+    /**
+     * Stops all the hosted services, and then the host.
+     */
+    public synchronized void stop(String[] args) {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * Lists the state of each hosted service.
+     */
+    public synchronized String status(String[] args) {
+        StringBuilder status = new StringBuilder();
+        for (HostedService hosted : services.values()) {
+            if (status.length() > 0) {
+                status.append(ServiceListenerThread.LINE_SEPARATOR);
+            }
+            status.append(hosted.name).append(": ").append(hosted.getState());
+        }
+        return status.toString();
+    }
+
+    public String getCommandLine() {
+        String commands = getStartCommand() + '|' + getStopCommand() + '|' + getRestartCommand() + '|'
+                + getStatusCommand();
+        return "Usage: java " + serviceController.mainClass + " {" + commands + "} [service name]";
+    }
+
+    /**
+     * Executes a command sent to the running host, if it is addressed to a
+     * hosted service.
+     *
+     * @return the command response, or null if the command must be handled
+     *         by the host itself.
+     */
+    String execute(String command, String[] args) {
+        HostedService hosted;
+        synchronized (this) {
+            hosted = args.length > 0 ? services.get(args[0]) : null;
+        }
+        if (hosted == null) {
+            return null;
+        }
+        String[] serviceArgs = Arrays.copyOfRange(args, 1, args.length);
+        if (command.equals(getStatusCommand())) {
+            return hosted.status(serviceArgs);
+        }
+        else if (command.equals(getStopCommand())) {
+            return hosted.stop(serviceArgs);
+        }
+        else if (command.equals(getStartCommand())) {
+            return hosted.start(serviceArgs);
+        }
+        else if (command.equals(getRestartCommand())) {
+            // a stopped (or crashed) service is just started
+            if (hosted.isRunning()) {
+                hosted.stop(serviceArgs);
+            }
+            return hosted.start(serviceArgs);
+        }
+        return null;
+    }
+
+    /**
+     * A service added to the host, and the thread running it.
+     */
+    private static class HostedService {
+        String name;
+        Service service;
+        Thread thread = null;
+        Throwable crash = null;
+
+        HostedService(String name, Service service) {
+            this.name = name;
+            this.service = service;
+        }
+
+        synchronized boolean isRunning() {
+            return thread != null;
+        }
+
+        synchronized String getState() {
+            if (thread != null) {
+                return "running";
+            }
+            if (crash != null) {
+                return "crashed (" + crash + ")";
+            }
+            return "stoped";
+        }
+
+        synchronized String start(final String[] args) {
+            if (thread != null) {
+                throw new RuntimeException("the service " + name + " is already running");
+            }
+            crash = null;
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    Throwable error = null;
+                    try {
+                        service.start(args);
+                    }
+                    catch (Throwable e) {
+                        e.printStackTrace();
+                        error = e;
+                    }
+                    synchronized (HostedService.this) {
+                        crash = error;
+                        thread = null;
+                        HostedService.this.notifyAll();
+                    }
+                }
+            }, "ServiceHost-" + name);
+            thread.start();
+            return "The service " + name + " started";
+        }
+
+        /**
+         * Stops the service, and waits until its start method returns.
+         */
+        String stop(String[] args) {
+            synchronized (this) {
+                if (thread == null) {
+                    throw new RuntimeException("the service " + name + " is not running");
+                }
+            }
+            service.stop(args);
+            synchronized (this) {
+                while (thread != null) {
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            return "The service " + name + " stoped";
+        }
+
+        String status(String[] args) {
+            synchronized (this) {
+                if (thread == null) {
+                    return getState();
+                }
+            }
+            return service.status(args);
+        }
+    }
+}
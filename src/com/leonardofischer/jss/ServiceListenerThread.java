@@ -0,0 +1,1084 @@
+package com.leonardofischer.jss;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Executes a thread that listen for commands sent by latter command line
+ * executions of the service.
+ *
+ * A single Selector multiplexes all control connections, so a slow client
+ * never blocks the others. Once a whole command is read, it is executed in a
+ * bounded pool of worker threads, and the response is handed back to this
+ * thread to be written.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceListenerThread extends Thread {
+
+    /**
+     * The biggest command (including its args) accepted from a client.
+     * Connections that send more than this without a terminator are closed.
+     */
+    static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    ServiceController serviceController;
+    ServerSocketChannel serverChannel;
+
+    /**
+     * A channel that only this process listens on, used when the main port is
+     * shared with another process during a handoff restart. May be null.
+     */
+    ServerSocketChannel instanceChannel;
+
+    /**
+     * The transport to be released after the listener stops, if any.
+     */
+    ControlTransport transportToRelease = null;
+
+    Selector selector;
+    ExecutorService workers;
+
+    /**
+     * Runs the stop and restart commands, so they never wait behind other
+     * commands.
+     */
+    ExecutorService priorityWorkers;
+
+    AdmissionControl admission;
+
+    /**
+     * Writes the rejected commands to the journal, so the selector thread
+     * never does file I/O. Null if the journal is disabled.
+     */
+    ThreadPoolExecutor journalWriter = null;
+
+    /**
+     * The number of rejections waiting to be written to the journal. During a
+     * flood, the ones above it are only counted in the metrics.
+     */
+    static final int MAX_PENDING_JOURNAL_EVENTS = 1024;
+
+    /**
+     * The connections accepted, and the ones over the maxConnections limit,
+     * that are only kept to be answered with a busy error. Only used by the
+     * selector thread.
+     */
+    int openConnections = 0;
+    int rejectedConnections = 0;
+    volatile boolean keepListening = true;
+
+    /**
+     * Set once a stop/restart command was accepted, so the service is not
+     * stopped twice if several clients ask for it at the same time.
+     */
+    boolean stopRequested = false;
+
+    /**
+     * Connections whose response was produced by a worker thread and must now
+     * be written by the selector thread.
+     */
+    ConcurrentLinkedQueue<Connection> completedCommands = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * The number of commands read but not completely answered yet. The
+     * listener only finishes after this reaches zero.
+     */
+    AtomicInteger pendingCommands = new AtomicInteger();
+
+    Charset charset = Charset.defaultCharset();
+
+    /**
+     * The connections subscribed to status updates with the watch command.
+     */
+    ConcurrentLinkedQueue<Connection> watchers = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * The number of watchers, limited by ServiceController.maxWatchers.
+     */
+    AtomicInteger watcherCount = new AtomicInteger();
+
+    /**
+     * Watchers with a new update that must be written by the selector thread.
+     */
+    ConcurrentLinkedQueue<Connection> updatedWatchers = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Sends the status to watchers that asked for periodic updates. Created
+     * with the first of them.
+     */
+    ScheduledExecutorService watchTimer = null;
+
+    /**
+     * Set while a status computation requested by Service.publishStatus() is
+     * waiting for a worker thread, so many calls are coalesced.
+     */
+    AtomicBoolean publishScheduled = new AtomicBoolean();
+
+    /**
+     * The last status sent to the watchers by Service.publishStatus().
+     */
+    volatile String lastPublished = null;
+
+    ServiceListenerThread(ServiceController serviceController, ServerSocketChannel serverChannel,
+            ServerSocketChannel instanceChannel) throws IOException {
+        this.serviceController = serviceController;
+        this.serverChannel = serverChannel;
+        this.instanceChannel = instanceChannel;
+        this.selector = Selector.open();
+        this.setName("ServiceCommandListenerThread");
+
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        if (instanceChannel != null) {
+            instanceChannel.configureBlocking(false);
+            instanceChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        if (serviceController.virtualThreads) {
+            workers = VirtualThreads.newVirtualExecutor("ServiceCommandWorkerThread-");
+            if (workers == null) {
+                System.err.println("virtual threads are not supported by this JVM, using the worker threads");
+            }
+        }
+        if (workers != null) {
+            // no command waits for a thread, so the priority lane is not needed
+            priorityWorkers = workers;
+        }
+        else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(serviceController.commandWorkerThreads,
+                    serviceController.commandWorkerThreads, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                            serviceController.maxPendingCommands), new WorkerThreadFactory());
+            pool.allowCoreThreadTimeOut(true);
+            workers = pool;
+            priorityWorkers = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ServicePriorityCommandThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        admission = new AdmissionControl(serviceController);
+        if (serviceController.journalDirectory != null) {
+            journalWriter = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                    MAX_PENDING_JOURNAL_EVENTS), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ServiceJournalThread");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.DiscardPolicy());
+            journalWriter.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Asks the listener to stop accepting new connections. Commands already
+     * read are still executed and answered before the thread finishes.
+     */
+    void shutdown() {
+        keepListening = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        try {
+            while (keepListening || pendingCommands.get() > 0) {
+                selector.select();
+                if (!keepListening && serverChannel.isOpen()) {
+                    closeIdleConnections();
+                }
+                writeCompletedCommands();
+                writeUpdatedWatchers();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                        }
+                        else if (key.isReadable()) {
+                            read(key);
+                        }
+                        else if (key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                    catch (IOException e) {
+                        // the client went away, just forget about it
+                        close(key);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the channels and the selector, and stops the worker threads.
+     * Called when the thread finishes, or instead of starting it if the
+     * service failed before.
+     */
+    void close() {
+        for (SelectionKey key : selector.keys()) {
+            close(key);
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        workers.shutdown();
+        priorityWorkers.shutdown();
+        if (journalWriter != null) {
+            journalWriter.shutdown();
+        }
+        if (watchTimer != null) {
+            watchTimer.shutdown();
+        }
+        releaseTransport();
+    }
+
+    /**
+     * Releases the transport right after the server channel is closed, so a
+     * process waiting for the release can bind it.
+     */
+    private void releaseTransport() {
+        if (transportToRelease != null) {
+            transportToRelease.release();
+            transportToRelease = null;
+        }
+    }
+
+    /**
+     * Closes the server channels and every connection that didn't send a
+     * complete command yet. Called once, when the listener is shutting down.
+     */
+    private void closeIdleConnections() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment != null && ((Connection) attachment).request != null
+                    && !((Connection) attachment).watching) {
+                continue;
+            }
+            close(key);
+        }
+        releaseTransport();
+    }
+
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        try {
+            // responses are small, and pipelined requests must not wait
+            channel.socket().setTcpNoDelay(true);
+        }
+        catch (UnsupportedOperationException e) {
+            // not a TCP connection
+        }
+        Connection connection = new Connection(channel);
+        connection.client = getClientAddress(channel);
+        int maxConnections = serviceController.maxConnections;
+        if (maxConnections > 0 && openConnections >= maxConnections) {
+            serviceController.metrics.recordRejection("connections");
+            if (rejectedConnections >= maxConnections) {
+                // too many to even answer them
+                channel.close();
+                return;
+            }
+            connection.rejected = true;
+            ++rejectedConnections;
+        }
+        else {
+            ++openConnections;
+        }
+        channel.register(selector, SelectionKey.OP_READ, connection);
+        serviceController.metrics.connectionOpened();
+    }
+
+    /**
+     * The address used to limit the commands of each client.
+     */
+    private static String getClientAddress(SocketChannel channel) {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+                return ((InetSocketAddress) address).getAddress().getHostAddress();
+            }
+        }
+        catch (IOException e) {
+            // counted as a local client
+        }
+        return "local";
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.watching) {
+            // watchers don't send anything else, only detects when they leave
+            connection.input.clear();
+            if (connection.channel.read(connection.input) < 0) {
+                close(key);
+            }
+            return;
+        }
+        int read = connection.channel.read(connection.input);
+        List<String> request = connection.parseRequest(charset, read < 0);
+        if (connection.accepting) {
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        if (request == null) {
+            if (read < 0 || !connection.input.hasRemaining() && !connection.growInput()) {
+                close(key);
+            }
+            return;
+        }
+        if (request.isEmpty()) {
+            close(key);
+            return;
+        }
+        dispatch(key, connection, request);
+    }
+
+    /**
+     * Sends a complete request to the worker threads. The connection doesn't
+     * read anything else until the response is written, so pipelined requests
+     * are answered in order.
+     */
+    private void dispatch(SelectionKey key, Connection connection, List<String> request) {
+        key.interestOps(0);
+        connection.request = request;
+        connection.pending = true;
+        pendingCommands.incrementAndGet();
+        String command = request.get(0);
+        if (serviceController.pingCommand.equals(command)) {
+            // answered at once, so a busy or slow service is still seen as
+            // running by other commands and by supervisors
+            long start = System.nanoTime();
+            connection.respond(charset, pong(), false);
+            serviceController.metrics.recordCommand("ping", System.nanoTime() - start);
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        String rejection;
+        if (connection.rejected) {
+            rejection = AdmissionControl.BUSY + "too many connections, try again later";
+        }
+        else {
+            rejection = admission.admit(connection.client, request);
+        }
+        if (rejection == null) {
+            try {
+                if (admission.isPriority(request)) {
+                    priorityWorkers.execute(new CommandTask(connection));
+                }
+                else {
+                    workers.execute(new CommandTask(connection));
+                }
+                return;
+            }
+            catch (RejectedExecutionException e) {
+                serviceController.metrics.recordRejection("queue_full");
+                rejection = AdmissionControl.BUSY + "too many pending commands, try again later";
+            }
+        }
+        if (journalWriter != null) {
+            final String client = connection.client;
+            final String detail = metricLabel(command) + ": " + rejection.substring(AdmissionControl.BUSY.length());
+            journalWriter.execute(new Runnable() {
+                public void run() {
+                    serviceController.recordEvent(LifecycleJournal.COMMAND, 0, LifecycleJournal.BUSY, client,
+                            detail);
+                }
+            });
+        }
+        connection.respond(charset, rejection, true);
+        completedCommands.add(connection);
+        selector.wakeup();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        connection.channel.write(connection.output);
+        if (connection.output.hasRemaining()) {
+            return;
+        }
+        if (connection.accepting) {
+            // the client only sends requests after reading the accept
+            connection.accepting = false;
+            key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        if (connection.watching) {
+            writeNextUpdate(key, connection);
+            return;
+        }
+        // text clients expect the connection to be closed after the response
+        if (connection.protocol != Connection.BINARY || !keepListening || connection.rejected) {
+            close(key);
+            return;
+        }
+        connection.pending = false;
+        pendingCommands.decrementAndGet();
+        connection.nextRequest();
+        List<String> request = connection.parseRequest(charset, false);
+        if (request != null) {
+            dispatch(key, connection, request);
+        }
+        else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void writeCompletedCommands() {
+        Connection connection = completedCommands.poll();
+        while (connection != null) {
+            SelectionKey key = connection.channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                try {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+                catch (Exception e) {
+                    close(key);
+                }
+            }
+            connection = completedCommands.poll();
+        }
+    }
+
+    /**
+     * Called after a response or update was completely written to a watcher.
+     * Writes the latest update, if any, or waits for the next one.
+     */
+    private void writeNextUpdate(SelectionKey key, Connection connection) {
+        if (connection.pending) {
+            // the watch command itself was answered
+            connection.pending = false;
+            pendingCommands.decrementAndGet();
+        }
+        String update = connection.latestUpdate.getAndSet(null);
+        if (update != null) {
+            connection.respond(charset, update, false);
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        else {
+            connection.writing = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Starts writing the updates of watchers that were waiting for one.
+     * Watchers still writing a previous update get the latest one when they
+     * finish, so slow watchers skip intermediate updates.
+     */
+    private void writeUpdatedWatchers() {
+        Connection connection = updatedWatchers.poll();
+        while (connection != null) {
+            connection.queued.set(false);
+            SelectionKey key = connection.channel.keyFor(selector);
+            if (key != null && key.isValid() && !connection.writing) {
+                String update = connection.latestUpdate.getAndSet(null);
+                if (update != null) {
+                    connection.writing = true;
+                    connection.respond(charset, update, false);
+                    key.interestOps(SelectionKey.OP_WRITE);
+                }
+            }
+            connection = updatedWatchers.poll();
+        }
+    }
+
+    /**
+     * Sends the given status to all watchers. Can be called from any thread,
+     * and never blocks.
+     */
+    void publish(String status) {
+        if (watchers.isEmpty()) {
+            return;
+        }
+        for (Connection connection : watchers) {
+            offerUpdate(connection, status);
+        }
+        selector.wakeup();
+    }
+
+    private void offerUpdate(Connection connection, String status) {
+        connection.latestUpdate.set(status);
+        if (connection.queued.compareAndSet(false, true)) {
+            updatedWatchers.add(connection);
+        }
+    }
+
+    /**
+     * Computes the status in a worker thread and sends it to all watchers.
+     * Calls made while a computation is waiting for a worker are coalesced.
+     */
+    void publishStatus() {
+        if (watchers.isEmpty() && serviceController.statusCache == null) {
+            return;
+        }
+        if (!publishScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    publishScheduled.set(false);
+                    String status;
+                    try {
+                        status = serviceController.getFreshStatus();
+                    }
+                    catch (RuntimeException e) {
+                        return;
+                    }
+                    // the same status published again is not sent
+                    if (!status.equals(lastPublished)) {
+                        lastPublished = status;
+                        publish(status);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            publishScheduled.set(false);
+        }
+    }
+
+    /**
+     * Subscribes the connection to status updates. Called from a worker
+     * thread.
+     *
+     * @param args
+     *            optionally, the interval (in milisseconds) of periodic status
+     *            updates.
+     * @return the current status, the first update sent.
+     */
+    private String watch(final Connection connection, String[] args) {
+        long interval = 0;
+        if (args.length > 0) {
+            try {
+                interval = Long.parseLong(args[0]);
+            }
+            catch (NumberFormatException e) {
+                throw new RuntimeException("invalid interval: " + args[0]);
+            }
+            if (interval < ServiceController.MIN_WATCH_INTERVAL) {
+                throw new RuntimeException("the interval must be at least " + ServiceController.MIN_WATCH_INTERVAL
+                        + "ms");
+            }
+        }
+        if (watcherCount.incrementAndGet() > serviceController.maxWatchers) {
+            watcherCount.decrementAndGet();
+            throw new RuntimeException("too many watchers, try again later");
+        }
+        String status;
+        try {
+            status = serviceController.getStatus(new String[0]);
+        }
+        catch (RuntimeException e) {
+            watcherCount.decrementAndGet();
+            throw e;
+        }
+        connection.watching = true;
+        connection.writing = true;
+        watchers.add(connection);
+        if (interval > 0) {
+            synchronized (this) {
+                if (watchTimer == null) {
+                    watchTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "ServiceWatchTimerThread");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                connection.timer = watchTimer.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        try {
+                            offerUpdate(connection, serviceController.getStatus(new String[0]));
+                            selector.wakeup();
+                        }
+                        catch (RuntimeException e) {
+                            // the next tick tries again
+                        }
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        return status;
+    }
+
+    private void close(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment != null && ((Connection) attachment).watching) {
+            Connection connection = (Connection) attachment;
+            connection.watching = false;
+            watchers.remove(connection);
+            watcherCount.decrementAndGet();
+            if (connection.timer != null) {
+                connection.timer.cancel(false);
+            }
+        }
+        if (attachment != null && ((Connection) attachment).pending) {
+            ((Connection) attachment).pending = false;
+            pendingCommands.decrementAndGet();
+        }
+        if (attachment != null && key.channel().isOpen()) {
+            serviceController.metrics.connectionClosed();
+            if (((Connection) attachment).rejected) {
+                --rejectedConnections;
+            }
+            else {
+                --openConnections;
+            }
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException e) {
+            // nothing else to do with this connection
+        }
+    }
+
+    /**
+     * Executes the given command, returning the text that should be sent back
+     * to the client. Called from the worker threads.
+     */
+    String executeCommand(String command, String[] args) {
+        Service service = serviceController.service;
+        if (service instanceof ServiceHost) {
+            String response = ((ServiceHost) service).execute(command, args);
+            if (response != null) {
+                return response;
+            }
+        }
+        boolean restart = service.getRestartCommand().equals(command);
+        if (restart || service.getStopCommand().equals(command)) {
+            synchronized (serviceController.shutdownLock) {
+                if (!stopRequested) {
+                    if (restart) {
+                        serviceController.prepareRestart();
+                    }
+                    else {
+                        // a supervisor must not start it again, even if the
+                        // stop command has to kill it
+                        ServiceSupervisor.notifyStop();
+                    }
+                    stopRequested = true;
+                    serviceController.updateState(StateFile.STOPPING);
+                    serviceController.deployer.stop(args);
+                }
+            }
+            String phases = "";
+            if (serviceController.stopTimeout > 0) {
+                // fails if the service doesn't stop in time
+                phases = serviceController.drain();
+            }
+            // only answers after the Service.start() method returned, and
+            // after the listener stopped accepting new connections
+            serviceController.executionLock.lock();
+            try {
+                shutdown();
+                return phases;
+            }
+            finally {
+                serviceController.executionLock.unlock();
+            }
+        }
+        else if (service.getStatusCommand().equals(command)) {
+            return serviceController.getStatus(args);
+        }
+        else if (service.getMetricsCommand().equals(command)) {
+            return serviceController.metrics.format();
+        }
+        else if (service.getTailCommand().equals(command)) {
+            return serviceController.tail(args);
+        }
+        else if (service.getProfileCommand().equals(command)) {
+            return serviceController.profile(args);
+        }
+        else if (service.getReloadCommand().equals(command)) {
+            return serviceController.reload(args);
+        }
+        else if (service.getHistoryCommand().equals(command)) {
+            return serviceController.history(args);
+        }
+        else if (service.getRedeployCommand().equals(command)) {
+            if (!serviceController.redeployEnabled) {
+                throw new RuntimeException("the redeploy command is disabled");
+            }
+            synchronized (serviceController.shutdownLock) {
+                if (stopRequested) {
+                    throw new RuntimeException("the service is stopping");
+                }
+            }
+            // not holding the shutdownLock, so a stop during the swap is not
+            // blocked: it discards the new version instead
+            return serviceController.deployer.redeploy(args);
+        }
+        else if (service.getWatchCommand().equals(command)) {
+            throw new RuntimeException("the watch command needs its own connection");
+        }
+        else if (serviceController.pidCommand.equals(command)) {
+            return ServiceController.getPid();
+        }
+        else if (serviceController.pingCommand.equals(command)) {
+            return pong();
+        }
+        else {
+            return command;
+        }
+    }
+
+    /**
+     * The response to the ping command, with the instance port if there is
+     * one.
+     */
+    private String pong() {
+        if (instanceChannel != null) {
+            return "pong" + LINE_SEPARATOR + instanceChannel.socket().getLocalPort();
+        }
+        return "pong";
+    }
+
+    /**
+     * The name under which a command is recorded in the metrics. Commands not
+     * known by the service are all recorded as "other", so clients can't
+     * create any number of metrics.
+     */
+    String metricLabel(String command) {
+        Service service = serviceController.service;
+        if (serviceController.pingCommand.equals(command)) {
+            return "ping";
+        }
+        if (command.equals(service.getStopCommand()) || command.equals(service.getRestartCommand())
+                || command.equals(service.getStatusCommand()) || command.equals(service.getMetricsCommand())
+                || command.equals(service.getTailCommand()) || command.equals(service.getRedeployCommand())
+                || command.equals(service.getReloadCommand()) || command.equals(service.getWatchCommand())
+                || command.equals(service.getProfileCommand()) || command.equals(service.getHistoryCommand())) {
+            return command;
+        }
+        return "other";
+    }
+
+    /**
+     * Runs one command in a worker thread, and hands the connection back to
+     * the selector thread with the response ready to be written.
+     */
+    private class CommandTask implements Runnable {
+        Connection connection;
+
+        CommandTask(Connection connection) {
+            this.connection = connection;
+        }
+
+        public void run() {
+            List<String> request = connection.request;
+            String command = request.get(0);
+            String[] args = new String[request.size() - 1];
+            for (int i = 1; i < request.size(); ++i) {
+                args[i - 1] = request.get(i);
+            }
+            long start = System.nanoTime();
+            String label = metricLabel(command);
+            byte outcome = LifecycleJournal.OK;
+            String detail = label;
+            try {
+                if (serviceController.service.getWatchCommand().equals(command)) {
+                    connection.respond(charset, watch(connection, args), false);
+                }
+                else {
+                    connection.respond(charset, executeCommand(command, args), false);
+                }
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+                connection.respond(charset, e.toString(), true);
+                outcome = LifecycleJournal.ERROR;
+                detail = label + ": " + e.getMessage();
+            }
+            long duration = System.nanoTime() - start;
+            serviceController.metrics.recordCommand(label, duration);
+            if (!"ping".equals(label)) {
+                // pings are sent by every other command and by supervisors
+                serviceController.recordEvent(LifecycleJournal.COMMAND, duration, outcome, connection.client,
+                        detail);
+            }
+            completedCommands.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * The state of a single control connection.
+     */
+    static class Connection {
+        static final int UNKNOWN = 0;
+        static final int TEXT = 1;
+        static final int BINARY = 2;
+
+        SocketChannel channel;
+
+        /**
+         * The address of the client, used by the admission control.
+         */
+        String client;
+
+        /**
+         * True if the connection was over the maxConnections limit. Its first
+         * command is answered with a busy error, and then it is closed.
+         */
+        boolean rejected = false;
+
+        ByteBuffer input = ByteBuffer.allocate(512);
+        ByteBuffer output;
+        List<String> request;
+
+        /**
+         * The protocol used by the client, known after the first byte is
+         * read.
+         */
+        int protocol = UNKNOWN;
+
+        /**
+         * True after the header of a binary connection was read, and false
+         * before.
+         */
+        boolean accepted = false;
+
+        /**
+         * True while the answer to the header of a binary connection is being
+         * written.
+         */
+        boolean accepting = false;
+
+        /**
+         * Where the last parsed request ends in the input buffer.
+         */
+        int requestEnd = 0;
+
+        /**
+         * True while the request was read but its response was not written
+         * yet.
+         */
+        boolean pending = false;
+
+        /**
+         * Where the next line starts in the input buffer.
+         */
+        int lineStart = 0;
+
+        /**
+         * Where to continue looking for line breaks in the input buffer.
+         */
+        int scanned = 0;
+
+        List<String> lines = new ArrayList<String>();
+
+        /**
+         * True after the connection subscribed to status updates with the
+         * watch command.
+         */
+        volatile boolean watching = false;
+
+        /**
+         * True while a response or update is being written to a watcher. Only
+         * used by the selector thread.
+         */
+        boolean writing = false;
+
+        /**
+         * The latest update not sent yet to a watcher. Older updates are
+         * replaced, so slow watchers only get the latest one.
+         */
+        AtomicReference<String> latestUpdate = new AtomicReference<String>();
+
+        /**
+         * True while the watcher is in the updatedWatchers queue.
+         */
+        AtomicBoolean queued = new AtomicBoolean();
+
+        /**
+         * The periodic updates of the watcher, if requested.
+         */
+        ScheduledFuture<?> timer = null;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Looks for a complete request in the bytes read so far.
+         *
+         * @return the request strings (command followed by args), or null if
+         *         the request is not complete yet.
+         * @throws IOException
+         *             if the client sent a malformed binary request.
+         */
+        List<String> parseRequest(Charset charset, boolean endOfStream) throws IOException {
+            if (protocol == UNKNOWN) {
+                if (input.position() == 0) {
+                    return endOfStream ? lines : null;
+                }
+                protocol = input.get(0) == ControlProtocol.PREAMBLE[0] ? BINARY : TEXT;
+            }
+            if (protocol == TEXT) {
+                return parseTextRequest(charset, endOfStream);
+            }
+            if (!accepted) {
+                if (input.position() < ControlProtocol.HEADER_SIZE) {
+                    return null;
+                }
+                int version = ControlProtocol.readHeader(input);
+                if (version != ControlProtocol.VERSION) {
+                    // the client falls back to the text protocol
+                    throw new IOException("unsupported protocol version " + version);
+                }
+                accepted = true;
+                accepting = true;
+                requestEnd = ControlProtocol.HEADER_SIZE;
+                nextRequest();
+                output = ControlProtocol.encodeAccept();
+                return null;
+            }
+            // the whole frame, with its length, must fit in the input buffer
+            List<String> request = ControlProtocol.decodeRequest(input, 0, MAX_REQUEST_SIZE - 4);
+            if (request != null) {
+                requestEnd = ControlProtocol.frameSize(input, 0);
+            }
+            return request;
+        }
+
+        /**
+         * Discards the last request from the input buffer, keeping any bytes
+         * of the next ones that were already read.
+         */
+        void nextRequest() {
+            input.flip();
+            input.position(requestEnd);
+            input.compact();
+            request = null;
+            requestEnd = 0;
+            lineStart = 0;
+            scanned = 0;
+            lines = new ArrayList<String>();
+        }
+
+        /**
+         * Looks for the empty line that ends a text request in the bytes read
+         * so far.
+         */
+        List<String> parseTextRequest(Charset charset, boolean endOfStream) {
+            byte[] bytes = input.array();
+            int end = input.position();
+            for (; scanned < end; ++scanned) {
+                if (bytes[scanned] != '\n') {
+                    continue;
+                }
+                int lineEnd = scanned;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                    --lineEnd;
+                }
+                if (lineEnd == lineStart) {
+                    return lines;
+                }
+                lines.add(new String(bytes, lineStart, lineEnd - lineStart, charset));
+                lineStart = scanned + 1;
+            }
+            if (endOfStream) {
+                if (end > lineStart) {
+                    lines.add(new String(bytes, lineStart, end - lineStart, charset));
+                }
+                return lines;
+            }
+            return null;
+        }
+
+        /**
+         * Doubles the input buffer, up to MAX_REQUEST_SIZE.
+         *
+         * @return false if the buffer is already too big
+         */
+        boolean growInput() {
+            if (input.capacity() >= MAX_REQUEST_SIZE) {
+                return false;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(input.capacity() * 2);
+            input.flip();
+            bigger.put(input);
+            input = bigger;
+            return true;
+        }
+
+        /**
+         * Prepares the output buffer with the given response, in the protocol
+         * used by the client.
+         */
+        void respond(Charset charset, String response, boolean error) {
+            if (protocol == BINARY) {
+                output = ControlProtocol.encodeResponse(output, response, error);
+                return;
+            }
+            if (error) {
+                response = "ERROR: " + response;
+            }
+            String text = response.length() == 0 ? LINE_SEPARATOR : response + LINE_SEPARATOR + LINE_SEPARATOR;
+            output = ByteBuffer.wrap(text.getBytes(charset));
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ServiceCommandWorkerThread-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.leonardofischer.jss;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * The metrics of a running service, reported by the 'metrics' command in the
+ * Prometheus text format.
+ *
+ * Besides the metrics collected by the controller (uptime, start duration,
+ * commands, control connections and JVM stats), services can register their
+ * own counters and gauges, usually in the main method or in Service.start().
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class ServiceMetrics {
+
+    /**
+     * The upper bounds (in seconds) of the command duration histogram
+     * buckets.
+     */
+    static final double[] DURATION_BUCKETS = { 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5 };
+
+    static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+
+    private ConcurrentSkipListMap<String, CommandStats> commands = new ConcurrentSkipListMap<String, CommandStats>();
+
+    private ConcurrentSkipListMap<String, Metric> userMetrics = new ConcurrentSkipListMap<String, Metric>();
+
+    private AtomicInteger activeConnections = new AtomicInteger();
+
+    private ConcurrentSkipListMap<String, LongAdder> rejections = new ConcurrentSkipListMap<String, LongAdder>();
+
+    private volatile long startTime = System.currentTimeMillis();
+
+    private volatile long startDuration = -1;
+
+    private volatile long startReference = -1;
+
+    ServiceMetrics() {
+    }
+
+    /**
+     * Registers a counter with the given name, or returns the existing one.
+     * Increment it with LongAdder.increment() or add().
+     *
+     * @param name
+     *            the metric name, such as "myservice_requests_total".
+     * @param help
+     *            a description of the metric.
+     */
+    public LongAdder counter(String name, String help) {
+        checkName(name);
+        Metric metric = userMetrics.get(name);
+        if (metric == null) {
+            metric = new Metric(help, new LongAdder(), null);
+            Metric existing = userMetrics.putIfAbsent(name, metric);
+            if (existing != null) {
+                metric = existing;
+            }
+        }
+        if (metric.counter == null) {
+            throw new RuntimeException(name + " is already registered as a gauge");
+        }
+        return metric.counter;
+    }
+
+    /**
+     * Registers a gauge with the given name, replacing any previous one. The
+     * value is read only when the metrics are requested, so it must be cheap
+     * and thread safe.
+     *
+     * @param name
+     *            the metric name, such as "myservice_queue_size".
+     * @param help
+     *            a description of the metric.
+     * @param value
+     *            returns the current value of the gauge.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        checkName(name);
+        Metric existing = userMetrics.get(name);
+        if (existing != null && existing.counter != null) {
+            throw new RuntimeException(name + " is already registered as a counter");
+        }
+        userMetrics.put(name, new Metric(help, null, value));
+    }
+
+    private static void checkName(String name) {
+        if (name == null || !NAME_PATTERN.matcher(name).matches() || name.startsWith("jss_")
+                || name.startsWith("jvm_")) {
+            throw new RuntimeException("invalid metric name: " + name);
+        }
+    }
+
+    /**
+     * Records a command executed by the running service.
+     */
+    void recordCommand(String command, long nanos) {
+        CommandStats stats = commands.get(command);
+        if (stats == null) {
+            stats = new CommandStats();
+            CommandStats existing = commands.putIfAbsent(command, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        stats.record(nanos);
+    }
+
+    void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Records a connection or command rejected by the admission control, for
+     * the given reason.
+     */
+    void recordRejection(String reason) {
+        LongAdder count = rejections.get(reason);
+        if (count == null) {
+            count = new LongAdder();
+            LongAdder existing = rejections.putIfAbsent(reason, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.increment();
+    }
+
+    /**
+     * Returns how many connections or commands were rejected for the given
+     * reason: "connections", "client_rate", "command_rate" or "queue_full".
+     */
+    public long getRejections(String reason) {
+        LongAdder count = rejections.get(reason);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Records that the service is being started now, in a JVM that was
+     * started earlier (a standby process).
+     */
+    void markStarting() {
+        startReference = System.currentTimeMillis();
+    }
+
+    /**
+     * Records the time taken by the service to get ready, since the JVM
+     * started (or since markStarting()). Only the first call has any effect.
+     */
+    void markReady() {
+        if (startDuration < 0) {
+            long start = startReference >= 0 ? startReference : ManagementFactory.getRuntimeMXBean().getStartTime();
+            startTime = System.currentTimeMillis();
+            startDuration = startTime - start;
+        }
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     */
+    public String format() {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "jss_uptime_seconds", "Time since the service got ready.", "gauge");
+        sample(out, "jss_uptime_seconds", "", (System.currentTimeMillis() - startTime) / 1000.0);
+        if (startDuration >= 0) {
+            header(out, "jss_start_duration_seconds", "Time from the JVM start until the service got ready.",
+                    "gauge");
+            sample(out, "jss_start_duration_seconds", "", startDuration / 1000.0);
+        }
+        header(out, "jss_active_connections", "Control connections currently open.", "gauge");
+        sample(out, "jss_active_connections", "", activeConnections.get());
+
+        if (!rejections.isEmpty()) {
+            header(out, "jss_rejected_total", "Connections and commands rejected by the admission control.",
+                    "counter");
+            for (Map.Entry<String, LongAdder> entry : rejections.entrySet()) {
+                sample(out, "jss_rejected_total", "reason=\"" + entry.getKey() + "\"", entry.getValue().sum());
+            }
+        }
+
+        header(out, "jss_command_duration_seconds", "Time taken to execute each control command.", "histogram");
+        for (Map.Entry<String, CommandStats> entry : commands.entrySet()) {
+            entry.getValue().format(out, "command=\"" + escape(entry.getKey()) + "\"");
+        }
+
+        formatJvm(out);
+
+        for (Map.Entry<String, Metric> entry : userMetrics.entrySet()) {
+            Metric metric = entry.getValue();
+            String name = entry.getKey();
+            header(out, name, metric.help, metric.counter != null ? "counter" : "gauge");
+            double value;
+            try {
+                value = metric.counter != null ? metric.counter.sum() : metric.gauge.getAsDouble();
+            }
+            catch (RuntimeException e) {
+                value = Double.NaN;
+            }
+            sample(out, name, "", value);
+        }
+        return out.toString();
+    }
+
+    private static void formatJvm(StringBuilder out) {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        header(out, "jvm_memory_bytes_used", "Used bytes of a memory area.", "gauge");
+        sample(out, "jvm_memory_bytes_used", "area=\"heap\"", heap.getUsed());
+        sample(out, "jvm_memory_bytes_used", "area=\"nonheap\"", nonHeap.getUsed());
+        header(out, "jvm_memory_bytes_committed", "Committed bytes of a memory area.", "gauge");
+        sample(out, "jvm_memory_bytes_committed", "area=\"heap\"", heap.getCommitted());
+        sample(out, "jvm_memory_bytes_committed", "area=\"nonheap\"", nonHeap.getCommitted());
+        header(out, "jvm_memory_bytes_max", "Max bytes of a memory area (-1 if undefined).", "gauge");
+        sample(out, "jvm_memory_bytes_max", "area=\"heap\"", heap.getMax());
+        sample(out, "jvm_memory_bytes_max", "area=\"nonheap\"", nonHeap.getMax());
+
+        header(out, "jvm_gc_collection_seconds", "Time spent in a garbage collector.", "summary");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String labels = "gc=\"" + escape(gc.getName()) + "\"";
+            sample(out, "jvm_gc_collection_seconds_count", labels, gc.getCollectionCount());
+            sample(out, "jvm_gc_collection_seconds_sum", labels, gc.getCollectionTime() / 1000.0);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        header(out, "jvm_threads_current", "Current thread count.", "gauge");
+        sample(out, "jvm_threads_current", "", threads.getThreadCount());
+        header(out, "jvm_threads_daemon", "Daemon thread count.", "gauge");
+        sample(out, "jvm_threads_daemon", "", threads.getDaemonThreadCount());
+        header(out, "jvm_threads_peak", "Peak thread count.", "gauge");
+        sample(out, "jvm_threads_peak", "", threads.getPeakThreadCount());
+    }
+
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+                .append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (labels.length() > 0) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        }
+        else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The duration histogram of one command.
+     */
+    static class CommandStats {
+        LongAdder[] buckets = new LongAdder[DURATION_BUCKETS.length + 1];
+        LongAdder totalNanos = new LongAdder();
+
+        CommandStats() {
+            for (int i = 0; i < buckets.length; ++i) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < DURATION_BUCKETS.length && seconds > DURATION_BUCKETS[bucket]) {
+                ++bucket;
+            }
+            buckets[bucket].increment();
+            totalNanos.add(nanos);
+        }
+
+        void format(StringBuilder out, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; ++i) {
+                cumulative += buckets[i].sum();
+                String le = i < DURATION_BUCKETS.length ? String.valueOf(DURATION_BUCKETS[i]) : "+Inf";
+                sample(out, "jss_command_duration_seconds_bucket", labels + ",le=\"" + le + "\"", cumulative);
+            }
+            sample(out, "jss_command_duration_seconds_sum", labels, totalNanos.sum() / 1e9);
+            sample(out, "jss_command_duration_seconds_count", labels, cumulative);
+        }
+    }
+
+    /**
+     * A counter or gauge registered by the service.
+     */
+    static class Metric {
+        String help;
+        LongAdder counter;
+        DoubleSupplier gauge;
+
+        Metric(String help, LongAdder counter, DoubleSupplier gauge) {
+            this.help = help == null ? "" : help;
+            this.counter = counter;
+            this.gauge = gauge;
+        }
+    }
+}
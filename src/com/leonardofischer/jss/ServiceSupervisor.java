@@ -0,0 +1,309 @@
+package com.leonardofischer.jss;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs in the process started by the start command when the service is
+ * supervised. It starts the service in another process, and starts it again
+ * if that process dies or stops answering pings.
+ *
+ * A process that exits with code zero was stopped on purpose, so the
+ * supervisor exits too. So does a process that told the supervisor it
+ * received the stop command, whatever its exit code, since the stop command
+ * kills the service if it doesn't stop in time. Crashes of processes that ran for less than
+ * minUptime are a crash loop: each one doubles the delay before the next
+ * restart, up to maxRestartDelay, and the supervisor gives up after
+ * maxCrashLoopRestarts of them.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceSupervisor {
+
+    /**
+     * The exit code of a supervised process that received a restart command.
+     * The supervisor starts it again right away.
+     */
+    static final int RESTART_EXIT_CODE = 75;
+
+    /**
+     * The exit code used for a process killed because it stopped answering
+     * pings.
+     */
+    static final int HUNG_EXIT_CODE = -1;
+
+    /**
+     * The system property with the loopback port and token where the
+     * supervised process tells the supervisor it received the stop command.
+     */
+    static final String STOP_PROPERTY = ServiceController.class.getCanonicalName() + ".supervisorStop";
+
+    /**
+     * How long (in milisseconds) the supervised process waits for the
+     * supervisor to acknowledge the stop.
+     */
+    static final int STOP_NOTICE_TIMEOUT = 1000;
+
+    /**
+     * The delay before the second restart of a crash loop. Doubled for each
+     * later crash.
+     */
+    static final long INITIAL_RESTART_DELAY = 100;
+
+    private ServiceController controller;
+
+    private int restarts = 0;
+
+    private int lastExitCode = 0;
+
+    private volatile boolean stopRequested = false;
+
+    private ServerSocket stopSocket = null;
+
+    private String stopToken;
+
+    ServiceSupervisor(ServiceController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * Supervises the service until it is stopped, or the supervisor gives up.
+     */
+    void run() {
+        try {
+            listenForStop();
+        }
+        catch (IOException e) {
+            log("could not listen for the stop command: " + e.getMessage());
+        }
+        try {
+            supervise();
+        }
+        finally {
+            if (stopSocket != null) {
+                try {
+                    stopSocket.close();
+                }
+                catch (IOException e) {
+                    // nothing else to do
+                }
+            }
+        }
+    }
+
+    private void supervise() {
+        int quickCrashes = 0;
+        boolean first = true;
+        while (true) {
+            long started = System.currentTimeMillis();
+            int exitCode;
+            try {
+                ReadinessHandshake handshake = new ReadinessHandshake();
+                List<String> jvmArgs = new LinkedList<String>();
+                jvmArgs.add("-D" + ServiceController.SUPERVISED_PROPERTY + "=" + restarts + ":" + lastExitCode);
+                if (stopSocket != null) {
+                    jvmArgs.add("-D" + STOP_PROPERTY + "=" + stopSocket.getLocalPort() + ":" + stopToken);
+                }
+                Process process = controller.launchProcess(handshake, jvmArgs, true);
+                boolean ready = handshake.await(process, controller.startTimeout);
+                if (first) {
+                    // tells the start command how the first start went
+                    first = false;
+                    ReadinessHandshake.signal(ready ? ReadinessHandshake.READY : ReadinessHandshake.FAILED);
+                    if (!ready) {
+                        process.destroy();
+                        return;
+                    }
+                }
+                exitCode = ready ? watch(process) : kill(process);
+            }
+            catch (IOException e) {
+                log("could not start the service: " + e.getMessage());
+                exitCode = HUNG_EXIT_CODE;
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+
+            if (exitCode == 0 || stopRequested) {
+                return;
+            }
+            if (exitCode == RESTART_EXIT_CODE) {
+                quickCrashes = 0;
+                continue;
+            }
+            ++restarts;
+            lastExitCode = exitCode;
+            controller.recordEvent(LifecycleJournal.CRASH,
+                    TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - started), LifecycleJournal.ERROR,
+                    "supervisor", "exit code " + exitCode);
+            if (System.currentTimeMillis() - started < controller.minUptime) {
+                ++quickCrashes;
+            }
+            else {
+                quickCrashes = 0;
+            }
+            if (controller.maxCrashLoopRestarts > 0 && quickCrashes > controller.maxCrashLoopRestarts) {
+                log("the service is in a crash loop, giving up after " + quickCrashes + " crashes");
+                return;
+            }
+            long delay = getRestartDelay(quickCrashes);
+            log("the service exited with code " + exitCode + ", restarting in " + delay + "ms");
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The delay before restarting a service that crashed quickly the given
+     * number of times in a row. The first crash is restarted right away.
+     */
+    long getRestartDelay(int quickCrashes) {
+        if (quickCrashes <= 1) {
+            return 0;
+        }
+        long delay = INITIAL_RESTART_DELAY << Math.min(quickCrashes - 2, 30);
+        return Math.min(delay, controller.maxRestartDelay);
+    }
+
+    /**
+     * Waits until the given process exits, killing it if it stops answering
+     * pings.
+     *
+     * @return the exit code of the process.
+     */
+    private int watch(Process process) throws InterruptedException {
+        ServiceClient client = new ServiceClient(1);
+        client.setTimeout(controller.supervisorPingTimeout);
+        client.setMaxIdleConnections(0);
+        ServiceEndpoint endpoint = controller.getEndpoint();
+        try {
+            int failures = 0;
+            while (!process.waitFor(controller.supervisorPingInterval, TimeUnit.MILLISECONDS)) {
+                if (isHung(client, endpoint)) {
+                    ++failures;
+                    if (failures >= controller.supervisorPingFailures) {
+                        log("the service did not answer " + failures + " pings, killing it");
+                        return kill(process);
+                    }
+                }
+                else {
+                    failures = 0;
+                }
+            }
+            return process.exitValue();
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Returns true if the service accepted the ping connection but did not
+     * answer in time. A service that is not listening is stopping (or
+     * starting), and will be detected by its exit. Pings are answered by the
+     * listener thread itself, so a service whose commands are slow or
+     * rejected is not taken for a hung one.
+     */
+    private static boolean isHung(ServiceClient client, ServiceEndpoint endpoint) throws InterruptedException {
+        try {
+            client.ping(endpoint).get();
+            // any answer, even a busy error, means the service is alive
+            return false;
+        }
+        catch (ExecutionException e) {
+            return e.getCause() instanceof TimeoutException;
+        }
+    }
+
+    /**
+     * Accepts the stop notices of the supervised processes in a background
+     * thread.
+     */
+    private void listenForStop() throws IOException {
+        stopSocket = new ServerSocket();
+        stopSocket.bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+        stopToken = Long.toHexString(new SecureRandom().nextLong());
+        Thread thread = new Thread("ServiceSupervisorStopThread") {
+            public void run() {
+                while (true) {
+                    try {
+                        Socket socket = stopSocket.accept();
+                        try {
+                            socket.setSoTimeout(STOP_NOTICE_TIMEOUT);
+                            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                            if (stopToken.equals(in.readLine())) {
+                                stopRequested = true;
+                                new PrintWriter(socket.getOutputStream(), true).println("ok");
+                            }
+                        }
+                        finally {
+                            socket.close();
+                        }
+                    }
+                    catch (IOException e) {
+                        if (stopSocket.isClosed()) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Called by the supervised process when it receives the stop command, so
+     * the supervisor doesn't start it again even if it is killed. Does
+     * nothing if this process is not supervised.
+     */
+    static void notifyStop() {
+        String value = System.getProperty(STOP_PROPERTY);
+        if (value == null) {
+            return;
+        }
+        int separator = value.indexOf(':');
+        try {
+            Socket socket = new Socket(InetAddress.getByName(null), Integer.parseInt(value.substring(0, separator)));
+            try {
+                socket.setSoTimeout(STOP_NOTICE_TIMEOUT);
+                new PrintWriter(socket.getOutputStream(), true).println(value.substring(separator + 1));
+                // the supervisor knows about the stop after it answers
+                new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            }
+            finally {
+                socket.close();
+            }
+        }
+        catch (Exception e) {
+            log("could not tell the supervisor about the stop: " + e.getMessage());
+        }
+    }
+
+    private static int kill(Process process) throws InterruptedException {
+        process.destroyForcibly().waitFor();
+        return HUNG_EXIT_CODE;
+    }
+
+    private static void log(String message) {
+        System.err.println("[supervisor] " + message);
+    }
+}
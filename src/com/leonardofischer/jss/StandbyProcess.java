@@ -0,0 +1,218 @@
+package com.leonardofischer.jss;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A spare JVM, already booted with the service classes loaded, that waits to
+ * take the place of the running service when it is restarted.
+ *
+ * The running service starts the standby process in background, after it is
+ * ready. The standby connects back to it through a loopback socket and waits.
+ * On restart, the running service sends it the handoff flag, the readiness
+ * handshake and the current service args, that may have changed since the
+ * standby was started (reload command), and the standby runs the service as
+ * if it was just started. If the running service exits without a restart, the connection is
+ * closed and the standby exits too.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class StandbyProcess {
+
+    static final String PROPERTY = ServiceController.class.getCanonicalName() + ".standby";
+
+    static final String ACTIVATE = "activate";
+
+    private ServiceController controller;
+
+    private Process process = null;
+
+    private Socket socket = null;
+
+    StandbyProcess(ServiceController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * Starts the standby process in a daemon thread.
+     */
+    void spawn() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    launch();
+                }
+                catch (IOException e) {
+                    System.err.println("could not start the standby process: " + e.getMessage());
+                }
+            }
+        }, "ServiceStandbyThread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void launch() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            serverSocket.bind(new InetSocketAddress(InetAddress.getByName(null), 0), 1);
+            serverSocket.setSoTimeout(controller.startTimeout);
+            String token = Long.toHexString(new SecureRandom().nextLong());
+            List<String> jvmArgs = new LinkedList<String>();
+            jvmArgs.add("-D" + PROPERTY + "=" + serverSocket.getLocalPort() + ":" + token);
+            Process standby = controller.launchProcess(null, jvmArgs, true);
+            Socket connection = serverSocket.accept();
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+            if (!token.equals(in.readLine())) {
+                connection.close();
+                standby.destroy();
+                return;
+            }
+            synchronized (this) {
+                process = standby;
+                socket = connection;
+            }
+        }
+        finally {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Returns true if the standby process is waiting to be activated. A
+     * standby process that died is discarded.
+     */
+    synchronized boolean isAvailable() {
+        if (socket != null && !process.isAlive()) {
+            discard();
+        }
+        return socket != null;
+    }
+
+    /**
+     * Makes the standby process run the service with the given args, and
+     * waits until it is ready. Must only be called if isAvailable() returned
+     * true.
+     *
+     * @param handoff
+     *            true if the standby must share the port with the service
+     *            that is running now.
+     * @throws IOException
+     *             if the args can't be sent to the standby process, that is
+     *             killed.
+     * @return true if the standby reported that it is ready. Otherwise, the
+     *         standby process is killed, so another one can take its place.
+     */
+    boolean activate(boolean handoff, String[] args) throws IOException {
+        Socket connection;
+        Process standby;
+        synchronized (this) {
+            connection = socket;
+            standby = process;
+            socket = null;
+            process = null;
+        }
+        boolean ready = false;
+        try {
+            ReadinessHandshake handshake = new ReadinessHandshake();
+            try {
+                for (String arg : args) {
+                    if (arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                        throw new IOException("the service args have line breaks");
+                    }
+                }
+                PrintWriter out = new PrintWriter(connection.getOutputStream(), true);
+                out.println(ACTIVATE);
+                out.println(handoff);
+                out.println(handshake.getPropertyValue());
+                out.println(args.length);
+                for (String arg : args) {
+                    out.println(arg);
+                }
+            }
+            finally {
+                connection.close();
+            }
+            ready = handshake.await(standby, controller.startTimeout);
+            return ready;
+        }
+        finally {
+            if (!ready) {
+                standby.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Makes the standby process exit, if it was not activated.
+     */
+    synchronized void discard() {
+        if (socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // the standby exits anyway
+            }
+            socket = null;
+            process = null;
+        }
+    }
+
+    /**
+     * Called in the standby process: connects to the running service and
+     * waits until it is activated. The handoff and readiness handshake
+     * properties are set as if this process was started by the restart.
+     *
+     * @return the args to run the service with, or null if the running
+     *         service exited without activating this process.
+     */
+    static String[] awaitActivation(String value) {
+        int separator = value.indexOf(':');
+        try {
+            Socket socket = new Socket(InetAddress.getByName(null), Integer.parseInt(value.substring(0, separator)));
+            try {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                out.println(value.substring(separator + 1));
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                if (!ACTIVATE.equals(in.readLine())) {
+                    return null;
+                }
+                boolean handoff = Boolean.parseBoolean(in.readLine());
+                String handshake = in.readLine();
+                String count = in.readLine();
+                if (handshake == null || count == null) {
+                    return null;
+                }
+                String[] args = new String[Integer.parseInt(count)];
+                for (int i = 0; i < args.length; ++i) {
+                    args[i] = in.readLine();
+                    if (args[i] == null) {
+                        return null;
+                    }
+                }
+                System.setProperty(ServiceController.HANDOFF_PROPERTY, String.valueOf(handoff));
+                System.setProperty(ReadinessHandshake.PROPERTY, handshake);
+                return args;
+            }
+            finally {
+                socket.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.leonardofischer.jss;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A small memory-mapped file where the running service keeps its process id,
+ * port, lifecycle state, start time, a heartbeat and a digest of its last
+ * status, so other processes on the same host can check if it is alive by
+ * reading a few bytes, without connecting to it.
+ *
+ * The running service holds a lock on the file while it runs, so it also
+ * works as a PID file: a second instance can't write it, and the lock is
+ * released by the operating system if the process dies. A background thread
+ * increments the heartbeat every heartbeatInterval milisseconds.
+ *
+ * <pre>
+ * StateFile state = StateFile.read("/var/run/myservice.state");
+ * if (state != null &amp;&amp; state.isHealthy()) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class StateFile {
+
+    public static final int STARTING = 1;
+
+    public static final int RUNNING = 2;
+
+    public static final int STOPPING = 3;
+
+    public static final int STOPPED = 4;
+
+    static final int MAGIC = 0x4A535331; // "JSS1"
+
+    static final int SIZE = 128;
+
+    // the layout of the file
+    static final int MAGIC_OFFSET = 0;
+    static final int SEQUENCE_OFFSET = 8;
+    static final int PID_OFFSET = 16;
+    static final int PORT_OFFSET = 24;
+    static final int STATE_OFFSET = 28;
+    static final int INTERVAL_OFFSET = 32;
+    static final int HEARTBEAT_OFFSET = 40;
+    static final int HEARTBEAT_TIME_OFFSET = 48;
+    static final int START_TIME_OFFSET = 56;
+    static final int STATUS_DIGEST_OFFSET = 64;
+
+    /**
+     * How many heartbeat intervals may pass without a heartbeat before the
+     * service is considered unhealthy.
+     */
+    static final int MISSED_HEARTBEATS = 3;
+
+    /**
+     * How many times a reader tries to get a consistent copy of the file
+     * while it is being written.
+     */
+    static final int READ_ATTEMPTS = 10;
+
+    private long pid;
+    private int port;
+    private int state;
+    private long heartbeatInterval;
+    private long heartbeat;
+    private long heartbeatTime;
+    private long startTime;
+    private long statusDigest;
+
+    // only used by the running service
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileLock lock = null;
+    private MappedByteBuffer buffer = null;
+    private ScheduledExecutorService ticker = null;
+    private String lastStatus = null;
+
+    private StateFile() {
+    }
+
+    /**
+     * Reads the state file of a service.
+     *
+     * @return the state, or null if the file doesn't exist or was never
+     *         written by a service.
+     * @throws IOException
+     *             if the file can't be read.
+     */
+    public static StateFile read(String path) throws IOException {
+        File file = new File(path);
+        if (file.length() < SIZE) {
+            return null;
+        }
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            for (int i = 0; i < READ_ATTEMPTS; ++i) {
+                long sequence = buffer.getLong(SEQUENCE_OFFSET);
+                if (buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+                    return null;
+                }
+                StateFile state = new StateFile();
+                state.pid = buffer.getLong(PID_OFFSET);
+                state.port = buffer.getInt(PORT_OFFSET);
+                state.state = buffer.getInt(STATE_OFFSET);
+                state.heartbeatInterval = buffer.getLong(INTERVAL_OFFSET);
+                state.heartbeat = buffer.getLong(HEARTBEAT_OFFSET);
+                state.heartbeatTime = buffer.getLong(HEARTBEAT_TIME_OFFSET);
+                state.startTime = buffer.getLong(START_TIME_OFFSET);
+                state.statusDigest = buffer.getLong(STATUS_DIGEST_OFFSET);
+                // the writer makes the sequence odd while it writes
+                if (sequence % 2 == 0 && sequence == buffer.getLong(SEQUENCE_OFFSET)) {
+                    return state;
+                }
+                Thread.yield();
+            }
+            throw new IOException("the state file is being written: " + path);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The process id of the service.
+     */
+    public long getPid() {
+        return pid;
+    }
+
+    /**
+     * The TCP port where the service listens for commands, or 0 if it uses a
+     * Unix domain socket.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * One of STARTING, RUNNING, STOPPING or STOPPED.
+     */
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * The number of heartbeats since the service started.
+     */
+    public long getHeartbeat() {
+        return heartbeat;
+    }
+
+    /**
+     * When (in milisseconds since the epoch) the last heartbeat happened.
+     */
+    public long getHeartbeatTime() {
+        return heartbeatTime;
+    }
+
+    /**
+     * When (in milisseconds since the epoch) the service started.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * The CRC32 of the last status computed by the service, or 0 if none was
+     * computed yet. Changes whenever the status changes.
+     */
+    public long getStatusDigest() {
+        return statusDigest;
+    }
+
+    /**
+     * Returns true if the service is running and its last heartbeat is
+     * recent. Doesn't check if the process still exists.
+     */
+    public boolean isHealthy() {
+        long age = System.currentTimeMillis() - heartbeatTime;
+        return state == RUNNING && age <= heartbeatInterval * MISSED_HEARTBEATS;
+    }
+
+    /**
+     * Called by the running service: writes its initial state to the file,
+     * and starts the heartbeat. If another process holds the file, keeps
+     * trying at each heartbeat, since during a restart both processes may
+     * run at the same time for a while.
+     */
+    static StateFile open(String path, long pid, int port, long heartbeatInterval) throws IOException {
+        StateFile state = new StateFile();
+        state.file = new File(path);
+        state.pid = pid;
+        state.port = port;
+        state.state = STARTING;
+        state.heartbeatInterval = heartbeatInterval;
+        state.startTime = System.currentTimeMillis();
+        state.randomAccessFile = new RandomAccessFile(state.file, "rw");
+        state.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ServiceHeartbeatThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final StateFile stateFile = state;
+        state.tick();
+        state.ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                stateFile.tick();
+            }
+        }, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+        return state;
+    }
+
+    /**
+     * Increments the heartbeat, locking the file first if needed.
+     */
+    private synchronized void tick() {
+        if (randomAccessFile == null) {
+            return;
+        }
+        if (lock == null && !tryLock()) {
+            return;
+        }
+        heartbeat++;
+        heartbeatTime = System.currentTimeMillis();
+        write();
+    }
+
+    private boolean tryLock() {
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            lock = channel.tryLock();
+            if (lock == null) {
+                return false;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            return true;
+        }
+        catch (OverlappingFileLockException e) {
+            // held by another service of this JVM
+            return false;
+        }
+        catch (IOException e) {
+            System.err.println("could not write the state file " + file + ": " + e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    private void write() {
+        long sequence = buffer.getLong(SEQUENCE_OFFSET);
+        if (sequence % 2 != 0) {
+            // left by a process that died while writing
+            sequence++;
+        }
+        buffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putLong(PID_OFFSET, pid);
+        buffer.putInt(PORT_OFFSET, port);
+        buffer.putInt(STATE_OFFSET, state);
+        buffer.putLong(INTERVAL_OFFSET, heartbeatInterval);
+        buffer.putLong(HEARTBEAT_OFFSET, heartbeat);
+        buffer.putLong(HEARTBEAT_TIME_OFFSET, heartbeatTime);
+        buffer.putLong(START_TIME_OFFSET, startTime);
+        buffer.putLong(STATUS_DIGEST_OFFSET, statusDigest);
+        buffer.putLong(SEQUENCE_OFFSET, sequence + 2);
+    }
+
+    /**
+     * Changes the lifecycle state written in the file.
+     */
+    synchronized void setState(int state) {
+        this.state = state;
+        if (buffer != null) {
+            write();
+        }
+    }
+
+    /**
+     * Writes the digest of the given status, if it changed.
+     */
+    synchronized void setStatus(String status) {
+        if (status.equals(lastStatus)) {
+            return;
+        }
+        lastStatus = status;
+        CRC32 crc = new CRC32();
+        crc.update(status.getBytes(ControlProtocol.UTF8));
+        if (crc.getValue() != statusDigest) {
+            statusDigest = crc.getValue();
+            if (buffer != null) {
+                write();
+            }
+        }
+    }
+
+    /**
+     * Writes the STOPPED state, stops the heartbeat and releases the file.
+     */
+    synchronized void close() {
+        if (ticker != null) {
+            ticker.shutdown();
+        }
+        if (buffer != null) {
+            state = STOPPED;
+            write();
+            buffer.force();
+            buffer = null;
+        }
+        if (randomAccessFile != null) {
+            try {
+                // also releases the lock
+                randomAccessFile.close();
+            }
+            catch (IOException e) {
+                // nothing else to do
+            }
+            randomAccessFile = null;
+        }
+        lock = null;
+    }
+}
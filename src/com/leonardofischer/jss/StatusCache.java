@@ -0,0 +1,148 @@
+package com.leonardofischer.jss;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the last result of Service.status() (called without args), refreshed
+ * in background every TTL milisseconds, so status requests don't call the
+ * service.
+ *
+ * Concurrent requests that need a new status (because there is no snapshot
+ * yet, or because they asked for a fresh one) share a single call to
+ * Service.status().
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class StatusCache {
+
+    ServiceDeployer deployer;
+
+    long ttl;
+
+    /**
+     * The last status computed, or null if none was computed yet (or if the
+     * last computation failed).
+     */
+    volatile String snapshot = null;
+
+    /**
+     * The computation in progress, shared by all requests that arrive while
+     * it runs.
+     */
+    AtomicReference<FutureTask<String>> inFlight = new AtomicReference<FutureTask<String>>();
+
+    ScheduledExecutorService refresher;
+
+    StatusCache(ServiceDeployer deployer, long ttl) {
+        this.deployer = deployer;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Starts refreshing the snapshot in background.
+     */
+    void start() {
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ServiceStatusRefresherThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    compute();
+                }
+                catch (RuntimeException e) {
+                    // the next request or refresh will try again
+                }
+            }
+        }, ttl, ttl, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (refresher != null) {
+            refresher.shutdown();
+        }
+    }
+
+    /**
+     * Discards the snapshot, so the next request computes a new one.
+     */
+    void invalidate() {
+        snapshot = null;
+    }
+
+    /**
+     * Returns the service status.
+     *
+     * @param fresh
+     *            if true, doesn't return the snapshot, but a newly computed
+     *            status.
+     */
+    String get(boolean fresh) {
+        String current = snapshot;
+        if (current != null && !fresh) {
+            return current;
+        }
+        return compute();
+    }
+
+    /**
+     * Calls Service.status(), or waits for the call already in progress.
+     */
+    String compute() {
+        while (true) {
+            FutureTask<String> task = inFlight.get();
+            if (task != null) {
+                return await(task);
+            }
+            FutureTask<String> newTask = new FutureTask<String>(new Callable<String>() {
+                public String call() {
+                    try {
+                        String status = deployer.getService().status(new String[0]);
+                        snapshot = status;
+                        return status;
+                    }
+                    catch (RuntimeException e) {
+                        snapshot = null;
+                        throw e;
+                    }
+                }
+            });
+            if (inFlight.compareAndSet(null, newTask)) {
+                try {
+                    newTask.run();
+                }
+                finally {
+                    inFlight.compareAndSet(newTask, null);
+                }
+                return await(newTask);
+            }
+        }
+    }
+
+    private static String await(FutureTask<String> task) {
+        try {
+            return task.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("interrupted while waiting for the status");
+        }
+    }
+}
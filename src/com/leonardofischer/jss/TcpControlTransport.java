@@ -0,0 +1,86 @@
+package com.leonardofischer.jss;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends commands through a TCP port. This is the default transport.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class TcpControlTransport extends ControlTransport {
+
+    /**
+     * The host to connect to, or null for the loopback address.
+     */
+    String host;
+
+    int port;
+
+    /**
+     * The maximum time (in milisseconds) to wait for a connection, or 0 for
+     * the operating system default.
+     */
+    int connectTimeout = 0;
+
+    TcpControlTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    ServerSocketChannel bind(boolean handoff) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        if (handoff) {
+            try {
+                PortSharing.enable(serverChannel);
+            }
+            catch (Exception e) {
+                serverChannel.close();
+                throw new IOException("could not share the port " + port + ": " + e);
+            }
+        }
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        return serverChannel;
+    }
+
+    SocketChannel connect() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(host), port);
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, connectTimeout);
+            channel.socket().setTcpNoDelay(true);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    boolean isReleased() {
+        try {
+            ServerSocket serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port));
+            serverSocket.close();
+            return true;
+        }
+        catch (IOException e) {
+            // still in use by the stopping service
+            return false;
+        }
+    }
+
+    boolean supportsHandoff() {
+        return PortSharing.isSupported();
+    }
+
+    public String toString() {
+        return "port " + port;
+    }
+}
@@ -0,0 +1,149 @@
+package com.leonardofischer.jss;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends commands through a Unix domain socket file, avoiding the TCP stack and
+ * the need to choose a free port for each service.
+ *
+ * Unix domain socket channels are only available since Java 16, so they are
+ * created by reflection to keep this library compatible with older Java
+ * versions.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class UnixControlTransport extends ControlTransport {
+
+    private static Object unixFamily = null;
+
+    private static Method addressOf = null;
+
+    private static Method openServerChannel = null;
+
+    private static Method openChannel = null;
+
+    private static Method bind = null;
+
+    static {
+        try {
+            Class<?> protocolFamily = Class.forName("java.net.ProtocolFamily");
+            Class<?> standardFamily = Class.forName("java.net.StandardProtocolFamily");
+            Object family = standardFamily.getMethod("valueOf", String.class).invoke(null, "UNIX");
+            addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            openServerChannel = ServerSocketChannel.class.getMethod("open", protocolFamily);
+            openChannel = SocketChannel.class.getMethod("open", protocolFamily);
+            bind = ServerSocketChannel.class.getMethod("bind", SocketAddress.class);
+            unixFamily = family;
+        }
+        catch (Exception e) {
+            // not supported by this Java version
+        }
+    }
+
+    /**
+     * Returns true if Unix domain sockets can be used in this environment.
+     */
+    static boolean isSupported() {
+        return unixFamily != null;
+    }
+
+    String path;
+
+    UnixControlTransport(String path) {
+        this.path = path;
+    }
+
+    ServerSocketChannel bind(boolean handoff) throws IOException {
+        File file = new File(path);
+        // a service that didn't answer the caller may just be busy, so the
+        // file is only deleted if nothing accepts connections on it, or if
+        // this process is replacing the one listening on it
+        if (file.exists() && !Boolean.getBoolean(ServiceController.HANDOFF_PROPERTY) && isListening()) {
+            throw new IOException("another process is listening on the " + this);
+        }
+        file.delete();
+        ServerSocketChannel serverChannel = (ServerSocketChannel) invoke(openServerChannel, null, unixFamily);
+        try {
+            invoke(bind, serverChannel, address());
+        }
+        catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        return serverChannel;
+    }
+
+    SocketChannel connect() throws IOException {
+        SocketChannel channel = (SocketChannel) invoke(openChannel, null, unixFamily);
+        try {
+            channel.connect((SocketAddress) address());
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Returns true if a process accepts connections on the socket file.
+     */
+    private boolean isListening() {
+        try {
+            connect().close();
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The stopping service deletes the file right after it stops listening.
+     */
+    boolean isReleased() {
+        return !new File(path).exists();
+    }
+
+    void release() {
+        new File(path).delete();
+    }
+
+    /**
+     * A new process can replace the socket file while the old one still
+     * listens on it, so handoff restarts are always supported.
+     */
+    boolean supportsHandoff() {
+        return true;
+    }
+
+    public String toString() {
+        return "socket " + path;
+    }
+
+    private Object address() throws IOException {
+        return invoke(addressOf, null, path);
+    }
+
+    private static Object invoke(Method method, Object target, Object arg) throws IOException {
+        try {
+            return method.invoke(target, arg);
+        }
+        catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(String.valueOf(e.getCause()));
+        }
+        catch (IllegalAccessException e) {
+            throw new IOException(e.toString());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.leonardofischer.jss;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors that run each task in a new virtual thread, when the JVM
+ * supports them (Java 21 or newer).
+ *
+ * The library is still compiled for older Java versions, so virtual threads
+ * are created through reflection. In older JVMs, the executors fall back to a
+ * cached pool of daemon platform threads.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class VirtualThreads {
+
+    /**
+     * Thread.ofVirtual(), or null if virtual threads are not supported.
+     */
+    private static final Method OF_VIRTUAL = findOfVirtual();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findOfVirtual() {
+        try {
+            return Thread.class.getMethod("ofVirtual");
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the JVM supports virtual threads.
+     */
+    static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an executor that runs each task in a new thread, named after
+     * the given prefix and a counter. The threads are virtual if supported, or
+     * reused daemon platform threads otherwise.
+     */
+    static ExecutorService newExecutor(final String namePrefix) {
+        ExecutorService executor = newVirtualExecutor(namePrefix);
+        if (executor != null) {
+            return executor;
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Creates an executor that runs each task in a new virtual thread, named
+     * after the given prefix and a counter.
+     * 
+     * @return the executor, or null if the JVM doesn't support virtual
+     *         threads.
+     */
+    static ExecutorService newVirtualExecutor(String namePrefix) {
+        if (!isSupported()) {
+            return null;
+        }
+        try {
+            // Executors.newThreadPerTaskExecutor(factory)
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, newFactory(namePrefix));
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread.ofVirtual().name(namePrefix, 1).factory()
+     */
+    private static ThreadFactory newFactory(String namePrefix) throws Exception {
+        Object builder = OF_VIRTUAL.invoke(null);
+        Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+        builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+        return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    }
+}
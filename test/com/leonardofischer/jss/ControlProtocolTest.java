@@ -0,0 +1,147 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+import static com.leonardofischer.jss.TestRunner.checkEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the framing of ControlProtocol.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ControlProtocolTest {
+
+    /**
+     * Copies the flipped buffer into a new one, positioned after its content,
+     * as the listener has it after reading from a channel.
+     */
+    private static ByteBuffer received(ByteBuffer frame) {
+        ByteBuffer buffer = ByteBuffer.allocate(frame.remaining() + 16);
+        buffer.put(frame);
+        return buffer;
+    }
+
+    static void testRequestRoundTrip() throws IOException {
+        ByteBuffer frame = ControlProtocol.encodeRequest(null, "status", new String[] { "-v", "a\u00e7\u00e3o" });
+        ByteBuffer buffer = received(frame);
+        List<String> request = ControlProtocol.decodeRequest(buffer, 0, 1024);
+        checkEquals(Arrays.asList("status", "-v", "a\u00e7\u00e3o"), request);
+        checkEquals(Integer.valueOf(buffer.position()), Integer.valueOf(ControlProtocol.frameSize(buffer, 0)));
+    }
+
+    static void testHandshake() {
+        ByteBuffer header = ControlProtocol.encodeHeader();
+        checkEquals(Integer.valueOf(ControlProtocol.HEADER_SIZE), Integer.valueOf(header.remaining()));
+        checkEquals(Integer.valueOf(ControlProtocol.VERSION), Integer.valueOf(ControlProtocol.readHeader(header)));
+        ByteBuffer accept = ControlProtocol.encodeAccept();
+        checkEquals(Integer.valueOf(ControlProtocol.ACCEPT_SIZE), Integer.valueOf(accept.remaining()));
+        check(ControlProtocol.isAccept(accept), "the accept was not recognized");
+    }
+
+    static void testTextServiceAnswerIsNotAccept() {
+        // a text service echoes the unknown command, followed by line breaks
+        ByteBuffer header = ControlProtocol.encodeHeader();
+        byte[] echo = new byte[ControlProtocol.PREAMBLE.length + 3];
+        header.get(echo, 0, ControlProtocol.PREAMBLE.length + 1);
+        echo[ControlProtocol.PREAMBLE.length + 1] = '\n';
+        echo[ControlProtocol.PREAMBLE.length + 2] = '\n';
+        check(!ControlProtocol.isAccept(ByteBuffer.wrap(echo)), "the echo of a text service was taken as accept");
+        echo[ControlProtocol.PREAMBLE.length + 1] = '\r';
+        check(!ControlProtocol.isAccept(ByteBuffer.wrap(echo)), "the echo of a text service was taken as accept");
+    }
+
+    static void testRequestWithoutArgs() throws IOException {
+        ByteBuffer buffer = received(ControlProtocol.encodeRequest(null, "stop", new String[0]));
+        checkEquals(Arrays.asList("stop"), ControlProtocol.decodeRequest(buffer, 0, 1024));
+    }
+
+    static void testPipelinedRequests() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(ControlProtocol.encodeRequest(null, "start", new String[0]));
+        buffer.put(ControlProtocol.encodeRequest(null, "status", new String[] { "x" }));
+        checkEquals(Arrays.asList("start"), ControlProtocol.decodeRequest(buffer, 0, 1024));
+        int next = ControlProtocol.frameSize(buffer, 0);
+        checkEquals(Arrays.asList("status", "x"), ControlProtocol.decodeRequest(buffer, next, 1024));
+    }
+
+    static void testIncompleteFrame() throws IOException {
+        ByteBuffer frame = ControlProtocol.encodeRequest(null, "status", new String[] { "abc" });
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        check(ControlProtocol.decodeRequest(buffer, 0, 1024) == null, "empty buffer decoded");
+        while (frame.remaining() > 1) {
+            buffer.put(frame.get());
+            check(ControlProtocol.decodeRequest(buffer, 0, 1024) == null, "partial frame decoded");
+        }
+        buffer.put(frame.get());
+        checkEquals(Arrays.asList("status", "abc"), ControlProtocol.decodeRequest(buffer, 0, 1024));
+    }
+
+    static void testFrameTooBig() {
+        ByteBuffer buffer = received(ControlProtocol.encodeRequest(null, "status", new String[] { "abcdef" }));
+        try {
+            ControlProtocol.decodeRequest(buffer, 0, 8);
+            throw new AssertionError("frame bigger than maxSize accepted");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    static void testMalformedFrames() {
+        checkMalformed(new int[] { 2 });
+        checkMalformed(new int[] { 8, -1, 0 });
+        checkMalformed(new int[] { 8, 1, 100 });
+        checkMalformed(new int[] { 8, 2, 0 });
+    }
+
+    private static void checkMalformed(int[] ints) {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        for (int value : ints) {
+            buffer.putInt(value);
+        }
+        try {
+            ControlProtocol.decodeRequest(buffer, 0, 1024);
+            throw new AssertionError("malformed frame accepted: " + Arrays.toString(ints));
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    static void testInvalidHeader() {
+        ByteBuffer buffer = ByteBuffer.wrap("status\n\n".getBytes(ControlProtocol.UTF8));
+        checkEquals(Integer.valueOf(-1), Integer.valueOf(ControlProtocol.readHeader(buffer)));
+        ByteBuffer header = ControlProtocol.encodeHeader();
+        header.put(ControlProtocol.HEADER_SIZE - 1, (byte) 'x');
+        checkEquals(Integer.valueOf(-1), Integer.valueOf(ControlProtocol.readHeader(header)));
+    }
+
+    static void testResponseRoundTrip() {
+        ByteBuffer frame = ControlProtocol.encodeResponse(null, "running", false);
+        int length = frame.getInt();
+        checkEquals(Integer.valueOf(frame.remaining()), Integer.valueOf(length));
+        CommandResult result = ControlProtocol.decodeResponse(frame.slice(), length);
+        checkEquals("running", result.getText());
+        check(!result.isError(), "ok response decoded as error");
+
+        frame = ControlProtocol.encodeResponse(frame, "failed", true);
+        length = frame.getInt();
+        result = ControlProtocol.decodeResponse(frame.slice(), length);
+        checkEquals("failed", result.getText());
+        check(result.isError(), "error response decoded as ok");
+    }
+
+    static void testClearReusesOrGrowsBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(300);
+        buffer.put((byte) 1);
+        check(ControlProtocol.clear(buffer, 300) == buffer, "buffer big enough was replaced");
+        checkEquals(Integer.valueOf(0), Integer.valueOf(buffer.position()));
+        ByteBuffer grown = ControlProtocol.clear(buffer, 1000);
+        check(grown != buffer && grown.capacity() >= 1000, "small buffer was not replaced");
+    }
+}
@@ -0,0 +1,165 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+import static com.leonardofischer.jss.TestRunner.checkEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.leonardofischer.jss.LifecycleJournal.Event;
+
+/**
+ * Tests writing and querying the LifecycleJournal, in a temporary directory.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class LifecycleJournalTest {
+
+    private static final int ALL = -1;
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("jss-journal", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("could not create " + directory);
+        }
+        return directory;
+    }
+
+    private static void delete(File directory) {
+        for (File file : LifecycleJournal.listSegments(directory)) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    static void testQueryReturnsRecordedEvents() throws IOException {
+        File directory = createDirectory();
+        try {
+            LifecycleJournal journal = new LifecycleJournal(directory, 10);
+            journal.record(LifecycleJournal.START, 1500000, LifecycleJournal.OK, "127.0.0.1", "start");
+            journal.record(LifecycleJournal.COMMAND, -1, LifecycleJournal.BUSY, "10.0.0.1", "status");
+            journal.close();
+
+            List<Event> events = LifecycleJournal.query(directory, 0, Long.MAX_VALUE, ALL);
+            checkEquals(Integer.valueOf(2), Integer.valueOf(events.size()));
+            Event start = events.get(0);
+            checkEquals("start", start.getTypeName());
+            checkEquals("ok", start.getOutcomeName());
+            checkEquals(Long.valueOf(1500000), Long.valueOf(start.duration));
+            checkEquals("127.0.0.1", start.client);
+            checkEquals("start", start.detail);
+            Event command = events.get(1);
+            checkEquals("command", command.getTypeName());
+            checkEquals("busy", command.getOutcomeName());
+            checkEquals("status", command.detail);
+            check(start.timestamp < command.timestamp, "timestamps are not increasing");
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    static void testQueryFiltersByTypeAndTime() throws IOException {
+        File directory = createDirectory();
+        try {
+            LifecycleJournal journal = new LifecycleJournal(directory, 10);
+            for (int i = 0; i < 10; ++i) {
+                journal.record(i % 2 == 0 ? LifecycleJournal.START : LifecycleJournal.STOP, i,
+                        LifecycleJournal.OK, "", "event " + i);
+            }
+            journal.close();
+            List<Event> all = LifecycleJournal.query(directory, 0, Long.MAX_VALUE, ALL);
+            checkEquals(Integer.valueOf(10), Integer.valueOf(all.size()));
+
+            List<Event> stops = LifecycleJournal.query(directory, 0, Long.MAX_VALUE, 1 << LifecycleJournal.STOP);
+            checkEquals(Integer.valueOf(5), Integer.valueOf(stops.size()));
+            for (Event event : stops) {
+                checkEquals("stop", event.getTypeName());
+            }
+
+            long from = all.get(3).timestamp;
+            long to = all.get(6).timestamp;
+            List<Event> range = LifecycleJournal.query(directory, from, to, ALL);
+            checkEquals(Integer.valueOf(4), Integer.valueOf(range.size()));
+            checkEquals("event 3", range.get(0).detail);
+            checkEquals("event 6", range.get(3).detail);
+
+            check(LifecycleJournal.query(directory, 0, Long.MAX_VALUE, 1 << LifecycleJournal.CRASH).isEmpty(),
+                    "found events of a type never recorded");
+            check(LifecycleJournal.query(directory, all.get(9).timestamp + 1, Long.MAX_VALUE, ALL).isEmpty(),
+                    "found events after the last one");
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    static void testQueryAcrossSegments() throws IOException {
+        File directory = createDirectory();
+        try {
+            LifecycleJournal journal = new LifecycleJournal(directory, 10);
+            int total = LifecycleJournal.SEGMENT_RECORDS + 5;
+            for (int i = 0; i < total; ++i) {
+                journal.record(LifecycleJournal.COMMAND, -1, LifecycleJournal.OK, "", Integer.toString(i));
+            }
+            journal.close();
+            checkEquals(Integer.valueOf(2), Integer.valueOf(LifecycleJournal.listSegments(directory).length));
+            List<Event> events = LifecycleJournal.query(directory, 0, Long.MAX_VALUE, ALL);
+            checkEquals(Integer.valueOf(total), Integer.valueOf(events.size()));
+            for (int i = 0; i < total; ++i) {
+                checkEquals(Integer.toString(i), events.get(i).detail);
+            }
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    static void testLongStringsAreTruncated() throws IOException {
+        File directory = createDirectory();
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 200; ++i) {
+                text.append('x');
+            }
+            LifecycleJournal journal = new LifecycleJournal(directory, 10);
+            journal.record(LifecycleJournal.COMMAND, -1, LifecycleJournal.OK, text.toString(), text.toString());
+            journal.close();
+            Event event = LifecycleJournal.query(directory, 0, Long.MAX_VALUE, ALL).get(0);
+            checkEquals(text.substring(0, LifecycleJournal.MAX_CLIENT), event.client);
+            checkEquals(text.substring(0, LifecycleJournal.MAX_DETAIL), event.detail);
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    static void testFindFirst() {
+        long[] timestamps = { 10, 20, 20, 30, 40 };
+        ByteBuffer segment = ByteBuffer.allocate(LifecycleJournal.HEADER_SIZE
+                + timestamps.length * LifecycleJournal.RECORD_SIZE);
+        for (int i = 0; i < timestamps.length; ++i) {
+            segment.putLong(LifecycleJournal.HEADER_SIZE + i * LifecycleJournal.RECORD_SIZE, timestamps[i]);
+        }
+        checkFindFirst(segment, timestamps.length, 0, 0);
+        checkFindFirst(segment, timestamps.length, 10, 0);
+        checkFindFirst(segment, timestamps.length, 11, 1);
+        checkFindFirst(segment, timestamps.length, 20, 1);
+        checkFindFirst(segment, timestamps.length, 21, 3);
+        checkFindFirst(segment, timestamps.length, 40, 4);
+        checkFindFirst(segment, timestamps.length, 41, 5);
+        checkFindFirst(segment, 0, 0, 0);
+    }
+
+    private static void checkFindFirst(ByteBuffer segment, int count, long from, int expected) {
+        checkEquals(Integer.valueOf(expected), Integer.valueOf(LifecycleJournal.findFirst(segment, count, from)));
+    }
+
+    static void testTypeNames() {
+        checkEquals(Integer.valueOf(LifecycleJournal.CRASH), Integer.valueOf(LifecycleJournal.getType("crash")));
+        checkEquals(Integer.valueOf(-1), Integer.valueOf(LifecycleJournal.getType("unknown")));
+    }
+}
@@ -0,0 +1,69 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+import static com.leonardofischer.jss.TestRunner.checkEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests the tail and the log rotation of OutputCapture.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class OutputCaptureTest {
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                content.write(buffer, 0, read);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return content.toString();
+    }
+
+    static void testRotatesLogFile() throws IOException {
+        File dir = File.createTempFile("jss-log", "");
+        dir.delete();
+        dir.mkdir();
+        File log = new File(dir, "service.log");
+        OutputCapture capture = new OutputCapture(log, 100, 2, 3);
+        capture.install(false);
+        try {
+            for (int i = 0; i < 20; ++i) {
+                System.out.println("line " + (i < 10 ? "0" : "") + i + " of the output");
+            }
+        }
+        finally {
+            capture.uninstall();
+        }
+        String separator = System.getProperty("line.separator");
+        checkEquals("line 17 of the output" + separator + "line 18 of the output" + separator
+                + "line 19 of the output", capture.tail(10));
+        File[] files = { new File(dir, "service.log.2"), new File(dir, "service.log.1"), log };
+        String content = "";
+        for (File file : files) {
+            check(file.exists(), file.getName() + " was not created");
+            check(file.length() <= 100, file.getName() + " is bigger than the maximum size");
+            content += read(file);
+        }
+        check(!new File(dir, "service.log.3").exists(), "more rotated files than the maximum were kept");
+        check(content.endsWith("line 19 of the output" + separator), "the last line was not written");
+        check(!content.contains("line 00"), "the oldest output was not deleted");
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+}
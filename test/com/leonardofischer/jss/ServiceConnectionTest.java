@@ -0,0 +1,190 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+import static com.leonardofischer.jss.TestRunner.checkEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests ServiceConnection against fake services: one that only knows the text
+ * protocol, and binary ones that misbehave after the handshake.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceConnectionTest {
+
+    /**
+     * Accepts connections in a background thread, handing each one to
+     * handle().
+     */
+    static abstract class FakeService extends Thread {
+        ServerSocket serverSocket;
+
+        FakeService() throws IOException {
+            serverSocket = new ServerSocket(0);
+            setDaemon(true);
+            start();
+        }
+
+        TcpControlTransport getTransport() {
+            return new TcpControlTransport(null, serverSocket.getLocalPort());
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    try {
+                        handle(socket);
+                    }
+                    finally {
+                        socket.close();
+                    }
+                }
+                catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        abstract void handle(Socket socket) throws IOException;
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * Answers as the services of the first versions of this library: reads a
+     * command and its args until an empty line, answers and closes.
+     */
+    static class TextService extends FakeService {
+
+        TextService() throws IOException {
+            super();
+        }
+
+        void handle(Socket socket) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintStream out = new PrintStream(socket.getOutputStream(), true);
+            String command = in.readLine();
+            String line = command;
+            int args = 0;
+            while (line != null && !"".equals(line)) {
+                line = in.readLine();
+                ++args;
+            }
+            if ("status".equals(command)) {
+                out.println("running with " + (args - 1) + " args");
+            }
+            else {
+                out.println(command);
+            }
+            out.println("");
+        }
+    }
+
+    /**
+     * Accepts the binary protocol, and then answers each request with the
+     * given bytes, or never answers if they are null.
+     */
+    static class BinaryService extends FakeService {
+        byte[] answer;
+
+        BinaryService(byte[] answer) throws IOException {
+            super();
+            this.answer = answer;
+        }
+
+        void handle(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            for (int i = 0; i < ControlProtocol.HEADER_SIZE; ++i) {
+                in.read();
+            }
+            ByteBuffer accept = ControlProtocol.encodeAccept();
+            out.write(accept.array(), accept.position(), accept.remaining());
+            if (answer != null) {
+                out.write(answer);
+            }
+            // waits until the client closes the connection
+            while (in.read() >= 0) {
+                // discards the requests
+            }
+        }
+    }
+
+    static void testFallsBackToTextProtocol() throws IOException {
+        TextService service = new TextService();
+        try {
+            ServiceConnection connection = new ServiceConnection(service.getTransport());
+            try {
+                CommandResult result = connection.send("status", "a", "b");
+                checkEquals("running with 2 args", result.getText());
+                check(!result.isError(), "the text answer was taken as an error");
+                // the text service closed the first connection
+                checkEquals("running with 0 args", connection.send("status").getText());
+                checkEquals("other", connection.send("other").getText());
+                check(connection.isOpen(), "the text connection was closed");
+            }
+            finally {
+                connection.close();
+            }
+            check(!connection.isOpen(), "the closed connection is still open");
+        }
+        finally {
+            service.close();
+        }
+    }
+
+    static void testTimesOutWithoutAnswer() throws IOException {
+        BinaryService service = new BinaryService(null);
+        try {
+            ServiceConnection connection = new ServiceConnection(service.getTransport());
+            connection.setTimeout(200);
+            long start = System.currentTimeMillis();
+            try {
+                connection.send("status");
+                throw new AssertionError("a response arrived from a service that never answers");
+            }
+            catch (SocketTimeoutException e) {
+                // expected
+            }
+            check(System.currentTimeMillis() - start < 5000, "the timeout was not respected");
+            check(!connection.isOpen(), "the connection was not closed after the timeout");
+        }
+        finally {
+            service.close();
+        }
+    }
+
+    static void testRejectsOversizedResponse() throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        length.putInt(0, ControlProtocol.MAX_RESPONSE_SIZE + 1);
+        BinaryService service = new BinaryService(length.array());
+        try {
+            ServiceConnection connection = new ServiceConnection(service.getTransport());
+            try {
+                connection.send("status");
+                throw new AssertionError("an oversized response was accepted");
+            }
+            catch (IOException e) {
+                // expected
+            }
+            check(!connection.isOpen(), "the connection was not closed after an invalid response");
+        }
+        finally {
+            service.close();
+        }
+    }
+}
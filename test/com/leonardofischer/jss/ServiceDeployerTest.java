@@ -0,0 +1,73 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+
+/**
+ * Tests the stop command against the service run by a ServiceDeployer.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceDeployerTest {
+
+    /**
+     * Runs until stopped, counting the calls to start() and stop().
+     */
+    static class CountingService extends Service {
+        volatile int starts = 0;
+        volatile int stops = 0;
+        volatile boolean running = false;
+
+        public void start(String[] args) {
+            ++starts;
+            running = true;
+            while (running) {
+                try {
+                    Thread.sleep(10);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        public void stop(String[] args) {
+            ++stops;
+            running = false;
+        }
+
+        public String status(String[] args) {
+            return "running";
+        }
+    }
+
+    static void testStopBeforeRun() throws InterruptedException {
+        CountingService service = new CountingService();
+        ServiceDeployer deployer = new ServiceDeployer(service.getServiceController(), service);
+        deployer.stop(new String[0]);
+        deployer.run(new String[0]);
+        check(service.starts == 0, "the service started after the stop command");
+        check(service.stops == 0, "a service that never started was stopped");
+        check(deployer.awaitFinished(0), "the deployer did not finish");
+    }
+
+    static void testStopWhileRunning() throws InterruptedException {
+        final CountingService service = new CountingService();
+        final ServiceDeployer deployer = new ServiceDeployer(service.getServiceController(), service);
+        Thread thread = new Thread() {
+            public void run() {
+                deployer.run(new String[0]);
+            }
+        };
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!service.running && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        check(service.running, "the service did not start");
+        deployer.stop(new String[0]);
+        check(deployer.awaitFinished(5000), "the service did not stop");
+        thread.join();
+        check(service.starts == 1 && service.stops == 1, "start and stop were not called once each");
+    }
+}
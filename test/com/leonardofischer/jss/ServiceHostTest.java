@@ -0,0 +1,74 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+import static com.leonardofischer.jss.TestRunner.checkEquals;
+
+import com.leonardofischer.jss.ServiceDeployerTest.CountingService;
+
+/**
+ * Tests how the commands sent to a running host are routed to its services.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceHostTest {
+
+    private static void awaitRunning(CountingService service) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!service.running && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        check(service.running, "the hosted service did not start");
+    }
+
+    static void testRoutesCommandsByName() throws InterruptedException {
+        ServiceHost host = new ServiceHost(ServiceHostTest.class);
+        CountingService billing = new CountingService();
+        CountingService clock = new CountingService();
+        host.addService("billing", billing);
+        host.addService("clock", clock);
+
+        checkEquals("The service billing started", host.execute("start", new String[] { "billing" }));
+        awaitRunning(billing);
+        checkEquals("running", host.execute("status", new String[] { "billing", "-v" }));
+        checkEquals("stoped", host.execute("status", new String[] { "clock" }));
+        check(clock.starts == 0, "a command was sent to the wrong service");
+
+        checkEquals("The service billing stoped", host.execute("stop", new String[] { "billing" }));
+        check(billing.stops == 1 && !billing.running, "the hosted service was not stopped");
+        checkEquals("stoped", host.execute("status", new String[] { "billing" }));
+    }
+
+    static void testHostCommands() {
+        ServiceHost host = new ServiceHost(ServiceHostTest.class);
+        host.addService("clock", new CountingService());
+        // handled by the host itself
+        check(host.execute("status", new String[0]) == null, "a command without name was routed");
+        check(host.execute("status", new String[] { "other" }) == null, "a command for an unknown service was routed");
+        check(host.execute("reload", new String[] { "clock" }) == null, "a command of the host was routed");
+        checkEquals("clock: stoped", host.status(new String[0]));
+    }
+
+    static void testRestart() throws InterruptedException {
+        ServiceHost host = new ServiceHost(ServiceHostTest.class);
+        CountingService clock = new CountingService();
+        host.addService("clock", clock);
+        // a stopped service is just started
+        checkEquals("The service clock started", host.execute("restart", new String[] { "clock" }));
+        awaitRunning(clock);
+        check(clock.stops == 0, "a stopped service was stopped again");
+
+        checkEquals("The service clock started", host.execute("restart", new String[] { "clock" }));
+        awaitRunning(clock);
+        check(clock.starts == 2 && clock.stops == 1, "the running service was not restarted");
+        host.execute("stop", new String[] { "clock" });
+    }
+
+    static void testHostedServicesUseTheHostController() {
+        ServiceHost host = new ServiceHost(ServiceHostTest.class);
+        CountingService clock = new CountingService();
+        host.addService("clock", clock);
+        check(clock.getServiceController() == host.getServiceController(),
+                "the hosted service is not bound to the host controller");
+    }
+}
@@ -0,0 +1,189 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+import static com.leonardofischer.jss.TestRunner.checkEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests how the listener parses the requests of a connection, fed with the
+ * bytes a client would send, as the selector thread reads them.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class ServiceListenerThreadTest {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    /**
+     * Puts the given bytes in the input buffer and parses them, growing the
+     * buffer as the listener does when it is full.
+     *
+     * @return the parsed request, or null if it is not complete yet.
+     * @throws IOException
+     *             if the connection would be closed because the request is
+     *             too big or malformed.
+     */
+    private static List<String> feed(ServiceListenerThread.Connection connection, byte[] bytes, boolean endOfStream)
+            throws IOException {
+        int offset = 0;
+        while (true) {
+            int count = Math.min(bytes.length - offset, connection.input.remaining());
+            connection.input.put(bytes, offset, count);
+            offset += count;
+            List<String> request = connection.parseRequest(CHARSET, endOfStream && offset == bytes.length);
+            if (request != null || connection.accepting) {
+                check(offset == bytes.length, "the request ended before the bytes fed");
+                return request;
+            }
+            if (offset == bytes.length) {
+                return null;
+            }
+            if (!connection.growInput()) {
+                throw new IOException("request too big");
+            }
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns a connection that already read the header of the binary
+     * protocol, and wrote its accept.
+     */
+    private static ServiceListenerThread.Connection binaryConnection() throws IOException {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        check(feed(connection, bytes(ControlProtocol.encodeHeader()), false) == null,
+                "the header was parsed as a request");
+        check(connection.accepting, "the header was not accepted");
+        check(ControlProtocol.isAccept(connection.output), "the header was not answered with an accept");
+        connection.accepting = false;
+        return connection;
+    }
+
+    static void testTextRequest() throws IOException {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        List<String> request = feed(connection, "status\r\n-v\nx y\r\n\r\n".getBytes(CHARSET), false);
+        checkEquals(Arrays.asList("status", "-v", "x y"), request);
+        checkEquals(Integer.valueOf(ServiceListenerThread.Connection.TEXT), Integer.valueOf(connection.protocol));
+    }
+
+    static void testTextRequestInPartialReads() throws IOException {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        byte[] bytes = "stop\na\u00e7\u00e3o\n\n".getBytes(CHARSET);
+        for (int i = 0; i < bytes.length - 1; ++i) {
+            check(feed(connection, new byte[] { bytes[i] }, false) == null, "partial text request parsed");
+        }
+        checkEquals(Arrays.asList("stop", "a\u00e7\u00e3o"), feed(connection, new byte[] { bytes[bytes.length - 1] },
+                false));
+    }
+
+    static void testTextRequestEndedByTheClient() throws IOException {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        checkEquals(Arrays.asList("status", "arg"), feed(connection, "status\narg".getBytes(CHARSET), true));
+        connection = new ServiceListenerThread.Connection(null);
+        check(feed(connection, new byte[0], true).isEmpty(), "a connection closed without a request was answered");
+    }
+
+    static void testTextRequestTooBig() {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        byte[] line = new byte[ServiceListenerThread.MAX_REQUEST_SIZE + 1];
+        Arrays.fill(line, (byte) 'a');
+        try {
+            feed(connection, line, false);
+            throw new AssertionError("a text request bigger than MAX_REQUEST_SIZE was accepted");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    static void testPipelinedBinaryRequests() throws IOException {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put(ControlProtocol.encodeHeader());
+        buffer.put(ControlProtocol.encodeRequest(null, "status", new String[] { "a" }));
+        buffer.put(ControlProtocol.encodeRequest(null, "ping", new String[0]));
+        buffer.flip();
+        // the requests after the header are kept until the accept is written
+        check(feed(connection, bytes(buffer), false) == null, "a request was parsed before the accept");
+        check(connection.accepting, "the header was not accepted");
+        connection.accepting = false;
+        checkEquals(Arrays.asList("status", "a"), connection.parseRequest(CHARSET, false));
+        connection.nextRequest();
+        checkEquals(Arrays.asList("ping"), connection.parseRequest(CHARSET, false));
+        connection.nextRequest();
+        check(connection.parseRequest(CHARSET, false) == null, "a request was parsed from an empty buffer");
+    }
+
+    static void testBinaryRequestInPartialReads() throws IOException {
+        ServiceListenerThread.Connection connection = binaryConnection();
+        byte[] frame = bytes(ControlProtocol.encodeRequest(null, "status", new String[] { "abc" }));
+        for (int i = 0; i < frame.length - 1; ++i) {
+            check(feed(connection, new byte[] { frame[i] }, false) == null, "partial binary request parsed");
+        }
+        checkEquals(Arrays.asList("status", "abc"), feed(connection, new byte[] { frame[frame.length - 1] }, false));
+    }
+
+    static void testUnsupportedBinaryVersion() {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        ByteBuffer header = ControlProtocol.encodeHeader();
+        header.put(ControlProtocol.PREAMBLE.length, (byte) (ControlProtocol.VERSION + 1));
+        try {
+            feed(connection, bytes(header), false);
+            throw new AssertionError("an unsupported protocol version was accepted");
+        }
+        catch (IOException e) {
+            // expected: the client falls back to the text protocol
+        }
+        check(!connection.accepting, "an unsupported protocol version was answered");
+    }
+
+    static void testBiggestBinaryRequest() throws IOException {
+        // the frame length, string count, and the length of both strings
+        char[] arg = new char[ServiceListenerThread.MAX_REQUEST_SIZE - 16 - "status".length()];
+        Arrays.fill(arg, 'a');
+        byte[] frame = bytes(ControlProtocol.encodeRequest(null, "status", new String[] { new String(arg) }));
+        checkEquals(Integer.valueOf(ServiceListenerThread.MAX_REQUEST_SIZE), Integer.valueOf(frame.length));
+        List<String> request = feed(binaryConnection(), frame, false);
+        checkEquals(Integer.valueOf(arg.length), Integer.valueOf(request.get(1).length()));
+    }
+
+    static void testBinaryRequestTooBig() throws IOException {
+        char[] arg = new char[ServiceListenerThread.MAX_REQUEST_SIZE - 16 - "status".length() + 1];
+        Arrays.fill(arg, 'a');
+        byte[] frame = bytes(ControlProtocol.encodeRequest(null, "status", new String[] { new String(arg) }));
+        ServiceListenerThread.Connection connection = binaryConnection();
+        try {
+            // rejected as soon as the length is read
+            feed(connection, Arrays.copyOf(frame, 4), false);
+            throw new AssertionError("a frame bigger than the input buffer was accepted");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    static void testResponses() {
+        ServiceListenerThread.Connection connection = new ServiceListenerThread.Connection(null);
+        connection.protocol = ServiceListenerThread.Connection.TEXT;
+        connection.respond(CHARSET, "running", true);
+        String separator = ServiceListenerThread.LINE_SEPARATOR;
+        checkEquals("ERROR: running" + separator + separator, new String(bytes(connection.output), CHARSET));
+        connection.protocol = ServiceListenerThread.Connection.BINARY;
+        connection.respond(CHARSET, "running", true);
+        int length = connection.output.getInt();
+        CommandResult result = ControlProtocol.decodeResponse(connection.output.slice(), length);
+        checkEquals("running", result.getText());
+        check(result.isError(), "the error flag was lost");
+    }
+}
@@ -0,0 +1,143 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+import static com.leonardofischer.jss.TestRunner.checkEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Tests writing and reading a StateFile, in a temporary file.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class StateFileTest {
+
+    /**
+     * Long enough for the heartbeat thread not to tick during a test.
+     */
+    private static final long INTERVAL = 60000;
+
+    /**
+     * Writes the given buffer as the content of the file.
+     */
+    private static void writeFile(File file, ByteBuffer content) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(0);
+            out.write(content.array());
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static ByteBuffer newContent(long sequence, int state, long heartbeatTime) {
+        ByteBuffer content = ByteBuffer.allocate(StateFile.SIZE);
+        content.putInt(StateFile.MAGIC_OFFSET, StateFile.MAGIC);
+        content.putLong(StateFile.SEQUENCE_OFFSET, sequence);
+        content.putInt(StateFile.STATE_OFFSET, state);
+        content.putLong(StateFile.INTERVAL_OFFSET, 1000);
+        content.putLong(StateFile.HEARTBEAT_TIME_OFFSET, heartbeatTime);
+        return content;
+    }
+
+    static void testReadMissingOrInvalidFile() throws IOException {
+        File file = File.createTempFile("jss-state", "");
+        try {
+            check(StateFile.read(file.getPath() + ".missing") == null, "read a missing file");
+            check(StateFile.read(file.getPath()) == null, "read an empty file");
+            writeFile(file, ByteBuffer.allocate(StateFile.SIZE));
+            check(StateFile.read(file.getPath()) == null, "read a file without the magic number");
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    static void testWriteAndRead() throws IOException {
+        File file = File.createTempFile("jss-state", "");
+        StateFile writer = StateFile.open(file.getPath(), 1234, 5678, INTERVAL);
+        try {
+            StateFile state = StateFile.read(file.getPath());
+            checkEquals(Long.valueOf(1234), Long.valueOf(state.getPid()));
+            checkEquals(Integer.valueOf(5678), Integer.valueOf(state.getPort()));
+            checkEquals(Integer.valueOf(StateFile.STARTING), Integer.valueOf(state.getState()));
+            checkEquals(Long.valueOf(1), Long.valueOf(state.getHeartbeat()));
+            checkEquals(Long.valueOf(0), Long.valueOf(state.getStatusDigest()));
+            check(state.getStartTime() > 0, "start time was not written");
+            check(!state.isHealthy(), "a starting service is healthy");
+
+            writer.setState(StateFile.RUNNING);
+            writer.setStatus("running");
+            state = StateFile.read(file.getPath());
+            checkEquals(Integer.valueOf(StateFile.RUNNING), Integer.valueOf(state.getState()));
+            check(state.isHealthy(), "a running service with a recent heartbeat is not healthy");
+            CRC32 crc = new CRC32();
+            crc.update("running".getBytes(ControlProtocol.UTF8));
+            checkEquals(Long.valueOf(crc.getValue()), Long.valueOf(state.getStatusDigest()));
+
+            writer.close();
+            state = StateFile.read(file.getPath());
+            checkEquals(Integer.valueOf(StateFile.STOPPED), Integer.valueOf(state.getState()));
+            check(!state.isHealthy(), "a stopped service is healthy");
+        }
+        finally {
+            writer.close();
+            file.delete();
+        }
+    }
+
+    static void testSecondWriterDoesNotOverwrite() throws IOException {
+        File file = File.createTempFile("jss-state", "");
+        StateFile first = StateFile.open(file.getPath(), 1, 1000, INTERVAL);
+        StateFile second = StateFile.open(file.getPath(), 2, 2000, INTERVAL);
+        try {
+            second.setState(StateFile.RUNNING);
+            StateFile state = StateFile.read(file.getPath());
+            checkEquals(Long.valueOf(1), Long.valueOf(state.getPid()));
+            checkEquals(Integer.valueOf(StateFile.STARTING), Integer.valueOf(state.getState()));
+        }
+        finally {
+            second.close();
+            first.close();
+            file.delete();
+        }
+    }
+
+    static void testMissedHeartbeatsAreUnhealthy() throws IOException {
+        File file = File.createTempFile("jss-state", "");
+        try {
+            long now = System.currentTimeMillis();
+            writeFile(file, newContent(2, StateFile.RUNNING, now));
+            check(StateFile.read(file.getPath()).isHealthy(), "recent heartbeat is not healthy");
+            writeFile(file, newContent(2, StateFile.RUNNING, now - 1000 * (StateFile.MISSED_HEARTBEATS + 1)));
+            check(!StateFile.read(file.getPath()).isHealthy(), "old heartbeat is healthy");
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    static void testReadWhileWriting() throws IOException {
+        File file = File.createTempFile("jss-state", "");
+        try {
+            // an odd sequence means the writer is in the middle of a write
+            writeFile(file, newContent(3, StateFile.RUNNING, System.currentTimeMillis()));
+            try {
+                StateFile.read(file.getPath());
+                throw new AssertionError("read a file in the middle of a write");
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.leonardofischer.jss;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the tests of the classes named *Test in the given directory, without
+ * depending on a test framework.
+ *
+ * A test is a static method without parameters whose name starts with
+ * "test". It fails if it throws anything, usually an AssertionError from one
+ * of the check methods of this class.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+public class TestRunner {
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args[0], "com/leonardofischer/jss");
+        String[] files = dir.list();
+        Arrays.sort(files);
+        int run = 0;
+        List<String> failures = new ArrayList<String>();
+        for (String file : files) {
+            if (!file.endsWith("Test.class")) {
+                continue;
+            }
+            Class<?> testClass = Class.forName("com.leonardofischer.jss." + file.substring(0, file.length() - 6));
+            Method[] methods = testClass.getDeclaredMethods();
+            Arrays.sort(methods, new Comparator<Method>() {
+                public int compare(Method a, Method b) {
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+            for (Method method : methods) {
+                if (!method.getName().startsWith("test") || !Modifier.isStatic(method.getModifiers())
+                        || method.getParameterTypes().length != 0) {
+                    continue;
+                }
+                String name = testClass.getSimpleName() + "." + method.getName();
+                ++run;
+                method.setAccessible(true);
+                try {
+                    method.invoke(null);
+                }
+                catch (InvocationTargetException e) {
+                    failures.add(name);
+                    System.err.println("FAILED: " + name);
+                    e.getCause().printStackTrace();
+                }
+            }
+        }
+        System.out.println("Tests run: " + run + ", failures: " + failures.size());
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void checkEquals(Object expected, Object actual) {
+        if (expected == null ? actual != null : !expected.equals(actual)) {
+            throw new AssertionError("expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+
+import com.leonardofischer.jss.AdmissionControl.TokenBucket;
+
+/**
+ * Tests the token buckets of AdmissionControl. Instead of sleeping, the tests
+ * move the last refill of the bucket back in time.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class TokenBucketTest {
+
+    private static final long SECOND = 1000000000L;
+
+    static void testStartsFull() {
+        TokenBucket bucket = new TokenBucket(1, 3);
+        check(bucket.isFull(), "new bucket is not full");
+        for (int i = 0; i < 3; ++i) {
+            check(bucket.tryAcquire(), "burst token " + i + " was not acquired");
+        }
+        check(!bucket.tryAcquire(), "token acquired from an empty bucket");
+        check(!bucket.isFull(), "empty bucket is full");
+    }
+
+    static void testRefillsAtRate() {
+        TokenBucket bucket = new TokenBucket(2, 10);
+        for (int i = 0; i < 10; ++i) {
+            bucket.tryAcquire();
+        }
+        bucket.lastRefill -= SECOND;
+        check(bucket.tryAcquire(), "first token of the second was not acquired");
+        check(bucket.tryAcquire(), "second token of the second was not acquired");
+        check(!bucket.tryAcquire(), "more tokens than the rate were acquired");
+    }
+
+    static void testPartialTokens() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        check(bucket.tryAcquire(), "token was not acquired");
+        bucket.lastRefill -= SECOND / 2;
+        check(!bucket.tryAcquire(), "half a token was acquired");
+        bucket.lastRefill -= SECOND / 2;
+        check(bucket.tryAcquire(), "two halves did not make a token");
+    }
+
+    static void testRefillIsCappedByCapacity() {
+        TokenBucket bucket = new TokenBucket(100, 2);
+        check(bucket.tryAcquire(), "token was not acquired");
+        bucket.lastRefill -= 60 * SECOND;
+        check(bucket.isFull(), "bucket did not refill");
+        check(bucket.tryAcquire() && bucket.tryAcquire(), "burst was not acquired");
+        check(!bucket.tryAcquire(), "refill exceeded the capacity");
+    }
+
+    static void testZeroRateNeverRefills() {
+        TokenBucket bucket = new TokenBucket(0, 1);
+        check(bucket.tryAcquire(), "token was not acquired");
+        bucket.lastRefill -= 60 * SECOND;
+        check(!bucket.tryAcquire(), "bucket without rate refilled");
+    }
+}
@@ -0,0 +1,50 @@
+package com.leonardofischer.jss;
+
+import static com.leonardofischer.jss.TestRunner.check;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Tests that binding a Unix domain socket only replaces stale socket files.
+ * Does nothing if this JVM doesn't support Unix domain sockets.
+ *
+ * @author Leonardo Garcia Fischer
+ *
+ */
+class UnixControlTransportTest {
+
+    static void testDoesNotReplaceListeningSocket() throws IOException {
+        if (!UnixControlTransport.isSupported()) {
+            return;
+        }
+        File file = File.createTempFile("jss-socket", ".sock");
+        file.delete();
+        UnixControlTransport transport = new UnixControlTransport(file.getPath());
+        ServerSocketChannel first = transport.bind(false);
+        try {
+            try {
+                transport.bind(false).close();
+                throw new AssertionError("replaced the socket of a listening process");
+            }
+            catch (IOException e) {
+                // expected
+            }
+            check(file.exists(), "the socket file of the listening process was deleted");
+        }
+        finally {
+            first.close();
+        }
+        // closed without deleting the file, as a process that died
+        check(file.exists(), "the stale socket file was not left");
+        ServerSocketChannel second = transport.bind(false);
+        try {
+            transport.connect().close();
+        }
+        finally {
+            second.close();
+            file.delete();
+        }
+    }
+}